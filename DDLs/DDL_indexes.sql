@@ -0,0 +1,32 @@
+-- secondary indexes for the lookups issued by the services, kept in sync with IndexManager
+-- one like, coin or favorite per (video, user)
+create unique index if not exists likes_bv_mid_uindex on likes (bv_liked, mid_liked);
+create unique index if not exists coins_bv_mid_uindex on coins (bv_coin, mid_coin);
+create unique index if not exists favorites_bv_mid_uindex on favorites (bv_favorite, mid_favorite);
+-- liked / collected videos of a user, and the deletes when a user is deleted
+create index if not exists likes_mid_index on likes (mid_liked);
+create index if not exists coins_mid_index on coins (mid_coin);
+create index if not exists favorites_mid_index on favorites (mid_favorite);
+-- danmus of a video in a time range
+create index if not exists danmurecord_bv_time_index on DanmuRecord (bv, time);
+create index if not exists danmurecord_mid_index on DanmuRecord (mid);
+-- viewers of a video, and videos watched by a user
+create index if not exists viewrecord_bv_index on ViewRecord (bv);
+create index if not exists viewrecord_mid_index on ViewRecord (mid);
+-- followers of a user, the followings are the prefix of the primary key
+create index if not exists user_follow_followee_index on user_follow (followee);
+-- videos posted by a user, and the duplicate title check when posting
+create index if not exists videorecord_ownermid_title_index on VideoRecord (ownerMid, title);
+-- substring search, LOWER(col) LIKE '%kw%' of searchVideo
+-- no pending list: every search would scan the unsorted recent inserts, and the catalog changes slowly
+create extension if not exists pg_trgm;
+create index if not exists videorecord_title_trgm_index on VideoRecord using gin (lower(title) gin_trgm_ops) with (fastupdate = off);
+create index if not exists videorecord_description_trgm_index on VideoRecord using gin (lower(description) gin_trgm_ops) with (fastupdate = off);
+create index if not exists videorecord_ownername_trgm_index on VideoRecord using gin (lower(ownerName) gin_trgm_ops) with (fastupdate = off);
+-- generalRecommendations, the most popular videos first
+create index if not exists video_stats_score_index on video_stats (score desc, bv);
+-- OIDC logins
+create index if not exists userrecord_qq_index on UserRecord (qq);
+create index if not exists userrecord_wechat_index on UserRecord (wechat);
+create index if not exists authinfo_qq_index on AuthInfo (qq);
+create index if not exists authinfo_wechat_index on AuthInfo (wechat);
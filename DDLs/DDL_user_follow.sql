@@ -0,0 +1,14 @@
+-- who follows whom, the live follow relation, following of UserRecord is only the snapshot of an import or registration
+-- no foreign keys, imported followings may name users that are not in the data
+CREATE TABLE if not exists user_follow
+(
+    follower bigint NOT NULL, -- mid of the following user
+    followee bigint NOT NULL, -- mid of the followed user
+    PRIMARY KEY (follower, followee)
+);
+
+-- edges of a database set up before this table
+INSERT INTO user_follow (follower, followee)
+SELECT DISTINCT mid, unnest(following)
+FROM UserRecord
+ON CONFLICT DO NOTHING;
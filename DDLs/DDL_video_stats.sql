@@ -0,0 +1,36 @@
+-- per-video counters of the interaction tables, kept by the statement triggers below and rebuilt by every import
+-- score is the popularity of generalRecommendations, the rates clamped to 1 and 0 for a video nobody watched
+CREATE TABLE if not exists video_stats
+(
+    bv         varchar(255) PRIMARY KEY,          -- the video, the row goes with it
+    duration   int,                               -- duration of the video, which updateVideoInfo cannot change
+    views      bigint           NOT NULL DEFAULT 0, -- rows in ViewRecord
+    watch_time double precision NOT NULL DEFAULT 0, -- sum of their timestamps
+    likes      bigint           NOT NULL DEFAULT 0,
+    coins      bigint           NOT NULL DEFAULT 0,
+    favorites  bigint           NOT NULL DEFAULT 0,
+    danmus     bigint           NOT NULL DEFAULT 0,
+    score      double precision GENERATED ALWAYS AS (
+        CASE
+            WHEN views = 0 THEN 0
+            ELSE LEAST(likes::double precision / views, 1)
+                + LEAST(coins::double precision / views, 1)
+                + LEAST(favorites::double precision / views, 1)
+                + danmus::double precision / views
+                + COALESCE(watch_time / views / NULLIF(duration, 0), 0)
+            END) STORED
+);
+
+-- counters of a database set up before this table
+INSERT INTO video_stats (bv, duration, views, watch_time, likes, coins, favorites, danmus)
+SELECT v.bv,
+       v.duration,
+       COALESCE(w.n, 0),
+       COALESCE(w.t, 0),
+       (SELECT COUNT(*) FROM likes WHERE BV_liked = v.bv),
+       (SELECT COUNT(*) FROM coins WHERE BV_coin = v.bv),
+       (SELECT COUNT(*) FROM favorites WHERE BV_favorite = v.bv),
+       (SELECT COUNT(*) FROM DanmuRecord WHERE bv = v.bv)
+FROM VideoRecord v
+         LEFT JOIN (SELECT bv, COUNT(*) AS n, SUM(timestamp) AS t FROM ViewRecord GROUP BY bv) w ON w.bv = v.bv
+ON CONFLICT DO NOTHING;
@@ -7,15 +7,23 @@ FROM UserRecord
 WHERE NOT EXISTS (SELECT 1 FROM AuthInfo WHERE mid = UserRecord.mid);
 
 
--- 创建包含所有 follower-followed 对的临时表
-WITH FollowersMapping AS (SELECT unnest(ur.following) AS followed_mid,
-                                 ur.mid               AS follower_mid
-                          FROM UserRecord ur),
--- 为每个 followed_mid 聚合其 followers
-     AggregatedFollowers AS (SELECT followed_mid,
-                                    ARRAY_AGG(DISTINCT follower_mid) AS followers
-                             FROM FollowersMapping
-                             GROUP BY followed_mid),
+-- 把 UserRecord.following 展开成 follower-followee 边
+INSERT INTO user_follow (follower, followee)
+SELECT DISTINCT mid, unnest(following)
+FROM UserRecord
+ON CONFLICT DO NOTHING;
+
+
+-- 为每个用户聚合其 following
+WITH AggregatedFollowing AS (SELECT follower               AS mid,
+                                    ARRAY_AGG(followee)    AS following
+                             FROM user_follow
+                             GROUP BY follower),
+-- 为每个 followee 聚合其 followers
+     AggregatedFollowers AS (SELECT followee               AS followed_mid,
+                                    ARRAY_AGG(follower)    AS followers
+                             FROM user_follow
+                             GROUP BY followee),
 -- 为每个用户聚合其 watched 列表
      AggregatedWatched AS (SELECT vr.mid,
                                   ARRAY_AGG(DISTINCT vr.bv) AS watched_videos
@@ -41,16 +49,36 @@ INSERT
 INTO UserInfoResp (mid, coin, following, follower, watched, liked, collected, posted)
 SELECT ur.mid,
        ur.coin,                                                  -- 从 UserRecord 获取 coin 值
-       ur.following,
+       COALESCE(afg.following, ARRAY []::bigint[]),              -- 如果有 following，则插入，否则插入空数组
        COALESCE(af.followers, ARRAY []::bigint[]),               -- 如果有 followers，则插入，否则插入空数组
        COALESCE(aw.watched_videos, ARRAY []::VARCHAR(255)[]),    -- 如果有 watched_videos，则插入，否则插入空数组
        COALESCE(al.liked_videos, ARRAY []::VARCHAR(255)[]),      -- 如果有 liked_videos，则插入，否则插入空数组
        COALESCE(afv.favorited_videos, ARRAY []::VARCHAR(255)[]), -- 如果有 favorited_videos，则插入，否则插入空数组
        COALESCE(ap.posted_videos, ARRAY []::VARCHAR(255)[])      -- 如果有 posted_videos，则插入，否则插入空数组
 FROM UserRecord ur
+         LEFT JOIN AggregatedFollowing afg ON ur.mid = afg.mid
          LEFT JOIN AggregatedFollowers af ON ur.mid = af.followed_mid
          LEFT JOIN AggregatedWatched aw ON ur.mid = aw.mid
          LEFT JOIN AggregatedLiked al ON ur.mid = al.mid
          LEFT JOIN AggregatedFavorites afv ON ur.mid = afv.mid
          LEFT JOIN AggregatedPosted ap ON ur.mid = ap.mid
 WHERE NOT EXISTS (SELECT 1 FROM UserInfoResp WHERE mid = ur.mid);
+
+
+-- 每个视频的计数, 导入时触发器是关掉的
+INSERT INTO video_stats (bv, duration, views, watch_time, likes, coins, favorites, danmus)
+SELECT v.bv,
+       v.duration,
+       COALESCE(w.n, 0),
+       COALESCE(w.t, 0),
+       COALESCE(l.n, 0),
+       COALESCE(c.n, 0),
+       COALESCE(f.n, 0),
+       COALESCE(d.n, 0)
+FROM VideoRecord v
+         LEFT JOIN (SELECT bv, COUNT(*) AS n, SUM(timestamp) AS t FROM ViewRecord GROUP BY bv) w ON w.bv = v.bv
+         LEFT JOIN (SELECT BV_liked AS bv, COUNT(*) AS n FROM likes GROUP BY BV_liked) l ON l.bv = v.bv
+         LEFT JOIN (SELECT BV_coin AS bv, COUNT(*) AS n FROM coins GROUP BY BV_coin) c ON c.bv = v.bv
+         LEFT JOIN (SELECT BV_favorite AS bv, COUNT(*) AS n FROM favorites GROUP BY BV_favorite) f ON f.bv = v.bv
+         LEFT JOIN (SELECT bv, COUNT(*) AS n FROM DanmuRecord GROUP BY bv) d ON d.bv = v.bv
+ON CONFLICT DO NOTHING;
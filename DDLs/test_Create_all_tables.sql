@@ -18,6 +18,9 @@ CREATE TABLE if not exists UserRecord
     coin       int                                                           -- initial number of coins
 );
 
+-- mids of registered users, MidAllocator leases them in blocks and moves the sequence past the imported users
+CREATE SEQUENCE if not exists userrecord_mid_seq INCREMENT BY 100;
+
 CREATE TABLE if not exists VideoRecord
 (
     bv          VARCHAR(255) PRIMARY KEY,           -- unique identification string of a video
@@ -82,6 +85,15 @@ CREATE TABLE if not exists UserInfoResp
     posted    VARCHAR(255)[]                                  -- BVs of posted videos
 );
 
+-- who follows whom, the live follow relation, following of UserRecord is only the snapshot of an import or registration
+-- no foreign keys, imported followings may name users that are not in the data
+CREATE TABLE if not exists user_follow
+(
+    follower bigint NOT NULL, -- mid of the following user
+    followee bigint NOT NULL, -- mid of the followed user
+    PRIMARY KEY (follower, followee)
+);
+
 create table if not exists likes
 (
     BV_liked  varchar(12) REFERENCES videorecord (BV),
@@ -100,10 +112,37 @@ create table if not exists coins
     mid_coin bigint references userrecord (mid)
 );
 
+-- per-video counters of the interaction tables, kept by the statement triggers below and rebuilt by every import
+-- score is the popularity of generalRecommendations, the rates clamped to 1 and 0 for a video nobody watched
+CREATE TABLE if not exists video_stats
+(
+    bv         varchar(255) PRIMARY KEY,          -- the video, the row goes with it
+    duration   int,                               -- duration of the video, which updateVideoInfo cannot change
+    views      bigint           NOT NULL DEFAULT 0, -- rows in ViewRecord
+    watch_time double precision NOT NULL DEFAULT 0, -- sum of their timestamps
+    likes      bigint           NOT NULL DEFAULT 0,
+    coins      bigint           NOT NULL DEFAULT 0,
+    favorites  bigint           NOT NULL DEFAULT 0,
+    danmus     bigint           NOT NULL DEFAULT 0,
+    score      double precision GENERATED ALWAYS AS (
+        CASE
+            WHEN views = 0 THEN 0
+            ELSE LEAST(likes::double precision / views, 1)
+                + LEAST(coins::double precision / views, 1)
+                + LEAST(favorites::double precision / views, 1)
+                + danmus::double precision / views
+                + COALESCE(watch_time / views / NULLIF(duration, 0), 0)
+            END) STORED
+);
+
 CREATE OR REPLACE FUNCTION add_view_to_userinfo()
     RETURNS TRIGGER AS
 $$
 BEGIN
+    -- deleteAccount fixes the arrays of a whole account itself, with one UPDATE per relation
+    IF current_setting('sustc.account_delete', true) = 'on' THEN
+        RETURN NULL;
+    END IF;
     IF TG_OP = 'INSERT' THEN
         RAISE NOTICE 'Adding bv: % to watched list of user MID: %', NEW.bv, NEW.mid;
         UPDATE UserInfoResp
@@ -146,27 +185,23 @@ EXECUTE FUNCTION add_view_to_userinfo();
 CREATE OR REPLACE FUNCTION userrecord_insert_trigger()
     RETURNS TRIGGER AS
 $$
-declare
-    followed_mid bigint;
 BEGIN
     IF NOT EXISTS (SELECT 1 FROM UserInfoResp WHERE mid = NEW.mid) THEN
         INSERT INTO UserInfoResp (mid, coin, following, follower, watched, liked, collected, posted)
         VALUES (NEW.mid,
                 0,
-                COALESCE(NEW.following, ARRAY []::bigint[]),
+                ARRAY []::bigint[],
                 ARRAY []::bigint[],
                 ARRAY []::VARCHAR(255)[],
                 ARRAY []::VARCHAR(255)[],
                 ARRAY []::VARCHAR(255)[],
                 ARRAY []::VARCHAR(255)[]);
     END IF;
+    -- the edges fill following and follower of UserInfoResp through user_follow_change
     IF NEW.following IS NOT NULL THEN
-        FOREACH followed_mid IN ARRAY NEW.following
-            LOOP
-                UPDATE UserInfoResp
-                SET follower = array_append(follower, NEW.mid)
-                WHERE mid = followed_mid;
-            END LOOP;
+        INSERT INTO user_follow (follower, followee)
+        SELECT DISTINCT NEW.mid, unnest(NEW.following)
+        ON CONFLICT DO NOTHING;
     END IF;
     RETURN NEW;
 END;
@@ -179,88 +214,82 @@ EXECUTE FUNCTION userrecord_insert_trigger();
 CREATE OR REPLACE FUNCTION userrecord_update_trigger()
     RETURNS TRIGGER AS
 $$
-DECLARE
-    removed_following BIGINT[];
-    added_following   BIGINT[];
-    followed_mid      BIGINT;
 BEGIN
-    RAISE NOTICE 'Update trigger started for MID: %', NEW.mid;
-    UPDATE UserInfoResp
-    SET following = NEW.following
-    WHERE mid = NEW.mid;
-    removed_following := ARRAY(
-            SELECT unnest(OLD.following)
-            EXCEPT
-            SELECT unnest(NEW.following)
-                         );
-    FOREACH followed_mid IN ARRAY removed_following
-        LOOP
-            RAISE NOTICE 'Removing unfollowed MID: % from follower list of MID: %', OLD.mid, followed_mid;
-            UPDATE UserInfoResp
-            SET follower = array_remove(follower, OLD.mid)
-            WHERE mid = followed_mid;
-        END LOOP;
-    added_following := ARRAY(
-            SELECT unnest(NEW.following)
-            EXCEPT
-            SELECT unnest(OLD.following)
-                       );
-    FOREACH followed_mid IN ARRAY added_following
-        LOOP
-            RAISE NOTICE 'Adding new follower MID: % to follower list of MID: %', NEW.mid, followed_mid;
-            UPDATE UserInfoResp
-            SET follower = array_append(follower, NEW.mid)
-            WHERE mid = followed_mid
-              AND NEW.mid <> followed_mid;
-        END LOOP;
-
+    -- follow() only writes user_follow, an update of the array is turned into the changed edges
+    DELETE
+    FROM user_follow
+    WHERE follower = NEW.mid
+      AND followee IN (SELECT unnest(OLD.following)
+                       EXCEPT
+                       SELECT unnest(NEW.following));
+    INSERT INTO user_follow (follower, followee)
+    SELECT NEW.mid, added.mid
+    FROM (SELECT unnest(NEW.following)
+          EXCEPT
+          SELECT unnest(OLD.following)) AS added(mid)
+    WHERE added.mid <> NEW.mid
+    ON CONFLICT DO NOTHING;
     RETURN NEW;
 END;
 $$ LANGUAGE plpgsql;
+-- only an update of following itself, coin updates must not touch the follow relation
 CREATE or replace TRIGGER userrecord_after_update
-    AFTER UPDATE
+    AFTER UPDATE OF following
     ON UserRecord
     FOR EACH ROW
+    WHEN (OLD.following IS DISTINCT FROM NEW.following)
 EXECUTE FUNCTION userrecord_update_trigger();
-CREATE OR REPLACE FUNCTION userrecord_delete_trigger()
+-- deleteAccount deletes the rows of a user with set-based statements, see AccountDeleter
+DROP TRIGGER IF EXISTS userrecord_after_delete ON UserRecord;
+DROP TRIGGER IF EXISTS userrecord_delete ON UserRecord;
+DROP TRIGGER IF EXISTS userrecord_delete_viewrecord ON UserRecord;
+DROP TRIGGER IF EXISTS userrecord_delete_likes ON UserRecord;
+DROP TRIGGER IF EXISTS userrecord_delete_favorites ON UserRecord;
+DROP TRIGGER IF EXISTS userrecord_delete_coins ON UserRecord;
+DROP TRIGGER IF EXISTS trigger_delete_user_danmu ON UserRecord;
+DROP FUNCTION IF EXISTS userrecord_delete_trigger();
+DROP FUNCTION IF EXISTS trigger_userrecord_delete();
+DROP FUNCTION IF EXISTS trigger_userrecord_delete_viewrecord();
+DROP FUNCTION IF EXISTS trigger_userrecord_delete_likes();
+DROP FUNCTION IF EXISTS trigger_userrecord_delete_favorites();
+DROP FUNCTION IF EXISTS trigger_userrecord_delete_coins();
+DROP FUNCTION IF EXISTS delete_user_danmu();
+CREATE OR REPLACE FUNCTION user_follow_change()
     RETURNS TRIGGER AS
 $$
-DECLARE
-    followed_mid   BIGINT;
-    following_user BIGINT;
 BEGIN
-    RAISE NOTICE 'Deleting user MID: % from UserInfoResp table', OLD.mid;
-    DELETE FROM UserInfoResp WHERE mid = OLD.mid;
-    IF OLD.following IS NOT NULL THEN
-        FOREACH followed_mid IN ARRAY OLD.following
-            LOOP
-                RAISE NOTICE 'Removing MID: % from follower list of MID: %', OLD.mid, followed_mid;
-                UPDATE UserInfoResp
-                SET follower = array_remove(follower, OLD.mid)
-                WHERE mid = followed_mid;
-            END LOOP;
+    -- deleteAccount fixes the arrays of a whole account itself, with one UPDATE per relation
+    IF current_setting('sustc.account_delete', true) = 'on' THEN
+        RETURN NULL;
     END IF;
-    FOR following_user IN
-        SELECT mid FROM UserInfoResp WHERE OLD.mid = ANY (following)
-        LOOP
-            RAISE NOTICE 'Removing MID: % from following list of MID: %', OLD.mid, following_user;
-            UPDATE UserInfoResp
-            SET following = array_remove(following, OLD.mid)
-            WHERE mid = following_user;
-        END LOOP;
-
+    -- both rows are updated by one statement, so an edge and its reverse lock them in the same order
+    IF TG_OP = 'INSERT' THEN
+        UPDATE UserInfoResp
+        SET following = CASE WHEN mid = NEW.follower THEN array_append(following, NEW.followee) ELSE following END,
+            follower  = CASE WHEN mid = NEW.followee THEN array_append(follower, NEW.follower) ELSE follower END
+        WHERE mid IN (NEW.follower, NEW.followee);
+        RETURN NEW;
+    END IF;
+    UPDATE UserInfoResp
+    SET following = CASE WHEN mid = OLD.follower THEN array_remove(following, OLD.followee) ELSE following END,
+        follower  = CASE WHEN mid = OLD.followee THEN array_remove(follower, OLD.follower) ELSE follower END
+    WHERE mid IN (OLD.follower, OLD.followee);
     RETURN OLD;
 END;
 $$ LANGUAGE plpgsql;
-CREATE or replace TRIGGER userrecord_after_delete
-    before DELETE
-    ON UserRecord
+CREATE or replace TRIGGER user_follow_after_change
+    AFTER INSERT OR DELETE
+    ON user_follow
     FOR EACH ROW
-EXECUTE FUNCTION userrecord_delete_trigger();
+EXECUTE FUNCTION user_follow_change();
 CREATE OR REPLACE FUNCTION update_userinfo_on_likes()
     RETURNS TRIGGER AS
 $$
 BEGIN
+    -- deleteAccount fixes the arrays of a whole account itself, with one UPDATE per relation
+    IF current_setting('sustc.account_delete', true) = 'on' THEN
+        RETURN NULL;
+    END IF;
     IF (TG_OP = 'DELETE') THEN
         UPDATE UserInfoResp
         SET liked = array_remove(liked, OLD.BV_liked)
@@ -277,6 +306,10 @@ CREATE OR REPLACE FUNCTION update_userinfo_on_favorites()
     RETURNS TRIGGER AS
 $$
 BEGIN
+    -- deleteAccount fixes the arrays of a whole account itself, with one UPDATE per relation
+    IF current_setting('sustc.account_delete', true) = 'on' THEN
+        RETURN NULL;
+    END IF;
     -- 更新 UserInfoResp 表中的 collected 列
     IF (TG_OP = 'DELETE') THEN
         UPDATE UserInfoResp
@@ -294,6 +327,10 @@ CREATE OR REPLACE FUNCTION update_userinfo_on_posted()
     RETURNS TRIGGER AS
 $$
 BEGIN
+    -- deleteAccount fixes the arrays of a whole account itself, with one UPDATE per relation
+    IF current_setting('sustc.account_delete', true) = 'on' THEN
+        RETURN NULL;
+    END IF;
     IF (TG_OP = 'DELETE') THEN
         UPDATE UserInfoResp
         SET posted = array_remove(posted, OLD.bv)
@@ -342,106 +379,198 @@ BEGIN
     RETURN NEW;
 END;
 $$ LANGUAGE plpgsql;
-CREATE OR REPLACE FUNCTION trigger_userrecord_delete() RETURNS TRIGGER AS
+CREATE or replace TRIGGER userrecord_insert
+    AFTER INSERT
+    ON UserRecord
+    FOR EACH ROW
+EXECUTE FUNCTION trigger_userrecord_insert();
+
+CREATE or replace TRIGGER userrecord_update
+    AFTER UPDATE
+    ON UserRecord
+    FOR EACH ROW
+EXECUTE FUNCTION trigger_userrecord_update();
+
+-- video_stats: one UPDATE per statement and video, from the transition tables, instead of one per row
+CREATE OR REPLACE FUNCTION video_stats_on_video()
+    RETURNS TRIGGER AS
 $$
 BEGIN
-    RAISE NOTICE 'Deleting from AuthInfo for mid: %', OLD.mid;
-    DELETE FROM AuthInfo WHERE mid = OLD.mid;
-    RETURN OLD;
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO video_stats (bv, duration)
+        SELECT bv, duration FROM new_rows
+        ON CONFLICT DO NOTHING;
+    ELSE
+        DELETE FROM video_stats WHERE bv IN (SELECT bv FROM old_rows);
+    END IF;
+    RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
-
-CREATE OR REPLACE FUNCTION trigger_userrecord_delete_viewrecord() RETURNS TRIGGER AS
+CREATE OR REPLACE FUNCTION video_stats_on_view()
+    RETURNS TRIGGER AS
 $$
 BEGIN
-    RAISE NOTICE 'Deleting from ViewRecord for mid: %', OLD.mid;
-    DELETE FROM ViewRecord WHERE mid = OLD.mid;
-    RETURN OLD;
+    IF TG_OP IN ('DELETE', 'UPDATE') THEN
+        UPDATE video_stats s
+        SET views      = s.views - d.n,
+            watch_time = s.watch_time - d.t
+        FROM (SELECT bv, COUNT(*) AS n, COALESCE(SUM(timestamp), 0) AS t FROM old_rows GROUP BY bv) d
+        WHERE s.bv = d.bv;
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        UPDATE video_stats s
+        SET views      = s.views + d.n,
+            watch_time = s.watch_time + d.t
+        FROM (SELECT bv, COUNT(*) AS n, COALESCE(SUM(timestamp), 0) AS t FROM new_rows GROUP BY bv) d
+        WHERE s.bv = d.bv;
+    END IF;
+    RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
-
-CREATE OR REPLACE FUNCTION trigger_userrecord_delete_likes() RETURNS TRIGGER AS
+CREATE OR REPLACE FUNCTION video_stats_on_likes()
+    RETURNS TRIGGER AS
 $$
 BEGIN
-    RAISE NOTICE 'Deleting from likes for mid: %', OLD.mid;
-    DELETE FROM likes WHERE mid_liked = OLD.mid;
-    RETURN OLD;
+    IF TG_OP = 'INSERT' THEN
+        UPDATE video_stats s SET likes = s.likes + d.n
+        FROM (SELECT BV_liked AS bv, COUNT(*) AS n FROM new_rows GROUP BY BV_liked) d
+        WHERE s.bv = d.bv;
+    ELSE
+        UPDATE video_stats s SET likes = s.likes - d.n
+        FROM (SELECT BV_liked AS bv, COUNT(*) AS n FROM old_rows GROUP BY BV_liked) d
+        WHERE s.bv = d.bv;
+    END IF;
+    RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
-
-CREATE OR REPLACE FUNCTION trigger_userrecord_delete_favorites() RETURNS TRIGGER AS
+CREATE OR REPLACE FUNCTION video_stats_on_coins()
+    RETURNS TRIGGER AS
 $$
 BEGIN
-    RAISE NOTICE 'Deleting from favorites for mid: %', OLD.mid;
-    DELETE FROM favorites WHERE mid_favorite = OLD.mid;
-    RETURN OLD;
+    IF TG_OP = 'INSERT' THEN
+        UPDATE video_stats s SET coins = s.coins + d.n
+        FROM (SELECT BV_coin AS bv, COUNT(*) AS n FROM new_rows GROUP BY BV_coin) d
+        WHERE s.bv = d.bv;
+    ELSE
+        UPDATE video_stats s SET coins = s.coins - d.n
+        FROM (SELECT BV_coin AS bv, COUNT(*) AS n FROM old_rows GROUP BY BV_coin) d
+        WHERE s.bv = d.bv;
+    END IF;
+    RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
-CREATE OR REPLACE FUNCTION trigger_userrecord_delete_coins() RETURNS TRIGGER AS
+CREATE OR REPLACE FUNCTION video_stats_on_favorites()
+    RETURNS TRIGGER AS
 $$
 BEGIN
-    RAISE NOTICE 'Deleting from coins for mid: %', OLD.mid;
-    DELETE FROM coins WHERE mid_coin = OLD.mid;
-    RETURN OLD;
+    IF TG_OP = 'INSERT' THEN
+        UPDATE video_stats s SET favorites = s.favorites + d.n
+        FROM (SELECT BV_favorite AS bv, COUNT(*) AS n FROM new_rows GROUP BY BV_favorite) d
+        WHERE s.bv = d.bv;
+    ELSE
+        UPDATE video_stats s SET favorites = s.favorites - d.n
+        FROM (SELECT BV_favorite AS bv, COUNT(*) AS n FROM old_rows GROUP BY BV_favorite) d
+        WHERE s.bv = d.bv;
+    END IF;
+    RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
-CREATE or replace TRIGGER userrecord_insert
-    AFTER INSERT
-    ON UserRecord
-    FOR EACH ROW
-EXECUTE FUNCTION trigger_userrecord_insert();
-
-CREATE or replace TRIGGER userrecord_update
-    AFTER UPDATE
-    ON UserRecord
-    FOR EACH ROW
-EXECUTE FUNCTION trigger_userrecord_update();
-
-
-CREATE or replace TRIGGER userrecord_delete
-    before DELETE
-    ON UserRecord
-    FOR EACH ROW
-EXECUTE FUNCTION trigger_userrecord_delete();
-
-CREATE or replace TRIGGER userrecord_delete_viewrecord
-    before DELETE
-    ON UserRecord
-    FOR EACH ROW
-EXECUTE FUNCTION trigger_userrecord_delete_viewrecord();
-
-
-CREATE or replace TRIGGER userrecord_delete_likes
-    BEFORE DELETE
-    ON UserRecord
-    FOR EACH ROW
-EXECUTE FUNCTION trigger_userrecord_delete_likes();
-
-CREATE or replace TRIGGER userrecord_delete_favorites
-    BEFORE DELETE
-    ON UserRecord
-    FOR EACH ROW
-EXECUTE FUNCTION trigger_userrecord_delete_favorites();
-;
-
-CREATE or replace TRIGGER userrecord_delete_coins
-    BEFORE DELETE
-    ON UserRecord
-    FOR EACH ROW
-EXECUTE FUNCTION trigger_userrecord_delete_coins();
-CREATE OR REPLACE FUNCTION delete_user_danmu() RETURNS TRIGGER AS
+CREATE OR REPLACE FUNCTION video_stats_on_danmu()
+    RETURNS TRIGGER AS
 $$
 BEGIN
-    DELETE FROM DanmuRecord WHERE mid = OLD.mid;
-    RETURN OLD;
+    IF TG_OP = 'INSERT' THEN
+        UPDATE video_stats s SET danmus = s.danmus + d.n
+        FROM (SELECT bv, COUNT(*) AS n FROM new_rows GROUP BY bv) d
+        WHERE s.bv = d.bv;
+    ELSE
+        UPDATE video_stats s SET danmus = s.danmus - d.n
+        FROM (SELECT bv, COUNT(*) AS n FROM old_rows GROUP BY bv) d
+        WHERE s.bv = d.bv;
+    END IF;
+    RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
+-- a trigger with transition tables takes a single event
+CREATE or replace TRIGGER video_stats_video_insert
+    AFTER INSERT
+    ON VideoRecord
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_video();
+CREATE or replace TRIGGER video_stats_video_delete
+    AFTER DELETE
+    ON VideoRecord
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_video();
+CREATE or replace TRIGGER video_stats_viewrecord_insert
+    AFTER INSERT
+    ON ViewRecord
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_view();
+CREATE or replace TRIGGER video_stats_viewrecord_update
+    AFTER UPDATE
+    ON ViewRecord
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_view();
+CREATE or replace TRIGGER video_stats_viewrecord_delete
+    AFTER DELETE
+    ON ViewRecord
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_view();
+CREATE or replace TRIGGER video_stats_likes_insert
+    AFTER INSERT
+    ON likes
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_likes();
+CREATE or replace TRIGGER video_stats_likes_delete
+    AFTER DELETE
+    ON likes
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_likes();
+CREATE or replace TRIGGER video_stats_coins_insert
+    AFTER INSERT
+    ON coins
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_coins();
+CREATE or replace TRIGGER video_stats_coins_delete
+    AFTER DELETE
+    ON coins
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_coins();
+CREATE or replace TRIGGER video_stats_favorites_insert
+    AFTER INSERT
+    ON favorites
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_favorites();
+CREATE or replace TRIGGER video_stats_favorites_delete
+    AFTER DELETE
+    ON favorites
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_favorites();
+CREATE or replace TRIGGER video_stats_danmurecord_insert
+    AFTER INSERT
+    ON DanmuRecord
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_danmu();
+CREATE or replace TRIGGER video_stats_danmurecord_delete
+    AFTER DELETE
+    ON DanmuRecord
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION video_stats_on_danmu();
 
-CREATE TRIGGER trigger_delete_user_danmu
-    BEFORE DELETE
-    ON UserRecord
-    FOR EACH ROW
-EXECUTE FUNCTION delete_user_danmu();
 
 CREATE OR REPLACE FUNCTION calculate_relevance(title TEXT, description TEXT, ownerName TEXT, keywords TEXT[])
 RETURNS INTEGER AS $$
@@ -463,3 +592,36 @@ BEGIN
     RETURN relevance_score;
 END;
 $$ LANGUAGE plpgsql;
+
+-- secondary indexes for the lookups issued by the services, kept in sync with IndexManager
+-- one like, coin or favorite per (video, user)
+create unique index if not exists likes_bv_mid_uindex on likes (bv_liked, mid_liked);
+create unique index if not exists coins_bv_mid_uindex on coins (bv_coin, mid_coin);
+create unique index if not exists favorites_bv_mid_uindex on favorites (bv_favorite, mid_favorite);
+-- liked / collected videos of a user, and the deletes when a user is deleted
+create index if not exists likes_mid_index on likes (mid_liked);
+create index if not exists coins_mid_index on coins (mid_coin);
+create index if not exists favorites_mid_index on favorites (mid_favorite);
+-- danmus of a video in a time range
+create index if not exists danmurecord_bv_time_index on DanmuRecord (bv, time);
+create index if not exists danmurecord_mid_index on DanmuRecord (mid);
+-- viewers of a video, and videos watched by a user
+create index if not exists viewrecord_bv_index on ViewRecord (bv);
+create index if not exists viewrecord_mid_index on ViewRecord (mid);
+-- followers of a user, the followings are the prefix of the primary key
+create index if not exists user_follow_followee_index on user_follow (followee);
+-- videos posted by a user, and the duplicate title check when posting
+create index if not exists videorecord_ownermid_title_index on VideoRecord (ownerMid, title);
+-- substring search, LOWER(col) LIKE '%kw%' of searchVideo
+-- no pending list: every search would scan the unsorted recent inserts, and the catalog changes slowly
+create extension if not exists pg_trgm;
+create index if not exists videorecord_title_trgm_index on VideoRecord using gin (lower(title) gin_trgm_ops) with (fastupdate = off);
+create index if not exists videorecord_description_trgm_index on VideoRecord using gin (lower(description) gin_trgm_ops) with (fastupdate = off);
+create index if not exists videorecord_ownername_trgm_index on VideoRecord using gin (lower(ownerName) gin_trgm_ops) with (fastupdate = off);
+-- generalRecommendations, the most popular videos first
+create index if not exists video_stats_score_index on video_stats (score desc, bv);
+-- OIDC logins
+create index if not exists userrecord_qq_index on UserRecord (qq);
+create index if not exists userrecord_wechat_index on UserRecord (wechat);
+create index if not exists authinfo_qq_index on AuthInfo (qq);
+create index if not exists authinfo_wechat_index on AuthInfo (wechat);
@@ -12,11 +12,19 @@ plugins {
 
 dependencies {
     implementation("org.springframework.boot:spring-boot-starter-jdbc")
+    // PgJDBC copy API for bulk import, the driver itself is provided at runtime by sustc-runner
+    compileOnly("org.postgresql:postgresql")
+
+    testImplementation("org.springframework.boot:spring-boot-starter-test")
 
     // You may add any utility library you want to use, such as guava.
     // ORM libraries are prohibited in this project.
 }
 
+tasks.test {
+    useJUnitPlatform()
+}
+
 tasks.withType<BootRun> {
     enabled = false
 }
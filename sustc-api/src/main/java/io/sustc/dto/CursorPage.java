@@ -0,0 +1,31 @@
+package io.sustc.dto;
+
+import java.io.Serializable;
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One page of a keyset paginated list
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CursorPage<T> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The entries of this page, in the order of the list.
+     */
+    private List<T> items;
+
+    /**
+     * The opaque continuation token to request the next page with, or {@code null} if this is the last page.
+     */
+    private String next;
+}
@@ -4,6 +4,7 @@ import io.sustc.dto.DanmuRecord;
 import io.sustc.dto.UserRecord;
 import io.sustc.dto.VideoRecord;
 
+import java.util.Iterator;
 import java.util.List;
 
 public interface DatabaseService {
@@ -29,6 +30,22 @@ public interface DatabaseService {
             List<VideoRecord> videoRecords
     );
 
+    /**
+     * Imports data to an empty database from record streams.
+     * Unlike {@link #importData(List, List, List)}, the records are read and shipped in bounded chunks,
+     * so the whole dataset never has to be held in memory.
+     * The user records are consumed first, then the video records, and the danmu records last.
+     *
+     * @param danmuRecords danmu records parsed from csv
+     * @param userRecords  user records parsed from csv
+     * @param videoRecords video records parsed from csv
+     */
+    void importData(
+            Iterator<DanmuRecord> danmuRecords,
+            Iterator<UserRecord> userRecords,
+            Iterator<VideoRecord> videoRecords
+    );
+
     /**
      * Truncates all tables in the database.
      * <p>
@@ -3,6 +3,7 @@ package io.sustc.service;
 import java.util.List;
 
 import io.sustc.dto.AuthInfo;
+import io.sustc.dto.CursorPage;
 
 public interface RecommenderService {
 
@@ -52,6 +53,22 @@ public interface RecommenderService {
      */
     List<String> generalRecommendations(int pageSize, int pageNum);
 
+    /**
+     * Recommends videos like {@link #generalRecommendations(int, int)}, but continues after the last video
+     * of the previous page instead of skipping {@code pageNum - 1} pages.
+     *
+     * @param pageSize the page size, if there are less than {@code pageSize} videos left, return all of them
+     * @param cursor   the {@link CursorPage#getNext()} of the previous page, {@code null} for the first page
+     * @return a page of video {@code bv}s, whose {@code next} is {@code null} if no video follows
+     * @apiNote You may consider the following corner cases:
+     * <ul>
+     *   <li>{@code pageSize} is invalid (<= 0)</li>
+     *   <li>{@code cursor} is not a token of this method</li>
+     * </ul>
+     * If any of the corner case happened, {@code null} shall be returned.
+     */
+    CursorPage<String> generalRecommendations(int pageSize, String cursor);
+
     /**
      * Recommends videos for a user, restricted on their interests.
      * The user's interests are defined as the videos that the user's friend(s) have watched,
@@ -80,6 +97,27 @@ public interface RecommenderService {
      */
     List<String> recommendVideosForUser(AuthInfo auth, int pageSize, int pageNum);
 
+    /**
+     * Recommends videos like {@link #recommendVideosForUser(AuthInfo, int, int)}, but continues after the last video
+     * of the previous page instead of skipping {@code pageNum - 1} pages.
+     * Videos with the same sort keys are ordered by {@code bv}.
+     *
+     * @param auth     the current user's authentication information to be recommended
+     * @param pageSize the page size, if there are less than {@code pageSize} videos left, return all of them
+     * @param cursor   the {@link CursorPage#getNext()} of the previous page, {@code null} for the first page
+     * @return a page of video {@code bv}s, whose {@code next} is {@code null} if no video follows
+     * @implNote
+     * If the current user's interest is empty, the pages are those of {@link #generalRecommendations(int, String)}.
+     * @apiNote You may consider the following corner cases:
+     * <ul>
+     *   <li>{@code auth} is invalid, as stated in {@link io.sustc.service.UserService#deleteAccount(AuthInfo, long)}</li>
+     *   <li>{@code pageSize} is invalid (<= 0)</li>
+     *   <li>{@code cursor} is not a token of this method</li>
+     * </ul>
+     * If any of the corner case happened, {@code null} shall be returned.
+     */
+    CursorPage<String> recommendVideosForUser(AuthInfo auth, int pageSize, String cursor);
+
     /**
      * Recommends friends for a user, based on their common followings.
      * Find all users that are not currently followed by the user, and have at least one common following with the user.
@@ -100,4 +138,22 @@ public interface RecommenderService {
      * If any of the corner case happened, {@code null} shall be returned.
      */
     List<Long> recommendFriends(AuthInfo auth, int pageSize, int pageNum);
+
+    /**
+     * Recommends friends like {@link #recommendFriends(AuthInfo, int, int)}, but continues after the last user
+     * of the previous page instead of skipping {@code pageNum - 1} pages.
+     *
+     * @param auth     the current user's authentication information to be recommended
+     * @param pageSize the page size, if there are less than {@code pageSize} users left, return all of them
+     * @param cursor   the {@link CursorPage#getNext()} of the previous page, {@code null} for the first page
+     * @return a page of {@code mid}s of the recommended users, whose {@code next} is {@code null} if no user follows
+     * @apiNote You may consider the following corner cases:
+     * <ul>
+     *   <li>{@code auth} is invalid, as stated in {@link io.sustc.service.UserService#deleteAccount(AuthInfo, long)}</li>
+     *   <li>{@code pageSize} is invalid (<= 0)</li>
+     *   <li>{@code cursor} is not a token of this method</li>
+     * </ul>
+     * If any of the corner case happened, {@code null} shall be returned.
+     */
+    CursorPage<Long> recommendFriends(AuthInfo auth, int pageSize, String cursor);
 }
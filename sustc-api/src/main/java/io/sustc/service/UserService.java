@@ -4,6 +4,8 @@ import io.sustc.dto.AuthInfo;
 import io.sustc.dto.RegisterUserReq;
 import io.sustc.dto.UserInfoResp;
 
+import java.util.List;
+
 public interface UserService {
 
     /**
@@ -23,6 +25,16 @@ public interface UserService {
      */
     long register(RegisterUserReq req);
 
+    /**
+     * Registers a batch of new users, with the same result as calling {@link #register(RegisterUserReq)}
+     * for each request in order.
+     * In particular, a {@code qq} or {@code wechat} used by several requests is only given to the first of them.
+     *
+     * @param reqs information of the new users
+     * @return the new users' {@code mid}s in the order of {@code reqs}, {@code -1} for every request that failed
+     */
+    List<Long> registerAll(List<RegisterUserReq> reqs);
+
     /**
      * Deletes a user.
      * The following relationships (this user following other users and other users following this user) shall be removed.
@@ -75,4 +87,13 @@ public interface UserService {
      * If any of the corner case happened, {@code null} shall be returned.
      */
     UserInfoResp getUserInfo(long mid);
+
+    /**
+     * Gets the information of several users at once, with the same result as calling {@link #getUserInfo(long)}
+     * for each {@code mid}.
+     *
+     * @param mids the users to be queried, may contain duplicates
+     * @return the personal information in the order of {@code mids}, {@code null} for every user that cannot be found
+     */
+    List<UserInfoResp> getUserInfos(long[] mids);
 }
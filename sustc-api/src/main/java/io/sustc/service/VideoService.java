@@ -1,6 +1,7 @@
 package io.sustc.service;
 
 import io.sustc.dto.AuthInfo;
+import io.sustc.dto.CursorPage;
 import io.sustc.dto.PostVideoReq;
 
 import java.time.LocalDateTime;
@@ -127,6 +128,26 @@ public interface VideoService {
      */
     List<String> searchVideo(AuthInfo auth, String keywords, int pageSize, int pageNum);
 
+    /**
+     * Searches the videos like {@link #searchVideo(AuthInfo, String, int, int)}, but continues after the last video
+     * of the previous page instead of skipping {@code pageNum - 1} pages.
+     *
+     * @param auth     the current user's authentication information
+     * @param keywords the keywords to search, e.g. "sustech database final review"
+     * @param pageSize the page size, if there are less than {@code pageSize} videos left, return all of them
+     * @param cursor   the {@link CursorPage#getNext()} of the previous page, {@code null} for the first page
+     * @return a page of video {@code bv}s, whose {@code next} is {@code null} if no video follows
+     * @apiNote You may consider the following corner cases:
+     * <ul>
+     *   <li>{@code auth} is invalid, as stated in {@link io.sustc.service.UserService#deleteAccount(AuthInfo, long)}</li>
+     *   <li>{@code keywords} is null or empty</li>
+     *   <li>{@code pageSize} is invalid (<= 0)</li>
+     *   <li>{@code cursor} is not a token of this method</li>
+     * </ul>
+     * If any of the corner case happened, {@code null} shall be returned.
+     */
+    CursorPage<String> searchVideo(AuthInfo auth, String keywords, int pageSize, String cursor);
+
     /**
      * Calculates the average view rate of a video.
      * The view rate is defined as the user's view time divided by the video's duration.
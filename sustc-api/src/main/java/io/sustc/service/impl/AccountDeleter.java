@@ -0,0 +1,343 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Deletes accounts for {@link UserImpl#deleteAccount}, with a few set-based statements over the indexed
+ * edge and interaction tables in one transaction, instead of the row triggers a {@code DELETE FROM UserRecord}
+ * used to cascade through.
+ * <p>
+ * The transaction sets {@code sustc.account_delete}, which makes the UserInfoResp triggers of
+ * ViewRecord, likes, favorites, VideoRecord and user_follow skip their per-row array updates.
+ * The arrays of the other users are fixed with one UPDATE per relation instead,
+ * and the row of the deleted user is dropped before its own interactions, so nothing has to keep it current.
+ * <p>
+ * With {@code sustc.delete-account-async} the account is only flagged {@code is_deleted}, which makes its
+ * credentials invalid right away, and its rows are purged in the background: its own interactions in batches of
+ * {@code sustc.delete-account-batch-size} rows, one short transaction each, then the rest as above.
+ * Accounts still flagged when the application starts are purged then.
+ */
+@Component
+@Slf4j
+public class AccountDeleter {
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private SustcConfig config;
+
+    @Autowired
+    private AuthCache authCache;
+
+    @Autowired
+    private SocialGraph socialGraph;
+
+    @Autowired
+    private UserInfoCache userInfoCache;
+
+    @Autowired
+    private VideoSearchIndex videoSearchIndex;
+
+    @Autowired
+    private SearchResultCache searchResultCache;
+
+    // one purge at a time, a purge is already bounded by its batches
+    private final ExecutorService purger = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "account-purge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // the rows of the user itself, by (table, mid column), which only its own UserInfoResp row refers to
+    private static final String[][] OWN_ROWS = {
+            {"ViewRecord", "mid"},
+            {"likes", "mid_liked"},
+            {"favorites", "mid_favorite"},
+            {"coins", "mid_coin"},
+            {"DanmuRecord", "mid"},
+    };
+
+    @EventListener
+    public void onApplicationStarted(ApplicationStartedEvent event) {
+        List<Long> pending = new ArrayList<>();
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT mid FROM UserRecord WHERE is_deleted")) {
+            while (rs.next()) {
+                pending.add(rs.getLong(1));
+            }
+        } catch (SQLException e) {
+            log.error("Failed to look up the accounts left to purge", e);
+            return;
+        }
+        if (!pending.isEmpty()) {
+            log.info("Resuming the purge of {} deleted accounts", pending.size());
+        }
+        for (long mid : pending) {
+            schedulePurge(mid);
+        }
+    }
+
+    /**
+     * Deletes the user and every row that refers to it in one transaction on the given connection.
+     *
+     * @return false if the user does not exist
+     */
+    boolean delete(Connection conn, long mid) throws SQLException {
+        Set<Long> affected = new HashSet<>();
+        List<String> viewed = new ArrayList<>();
+        List<String> videos = new ArrayList<>();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            boolean deleted = deleteRows(conn, mid, affected, viewed, videos);
+            conn.commit();
+            if (deleted) {
+                forget(mid);
+                userInfoCache.invalidate(affected);
+                forgetVideos(viewed, videos);
+            }
+            return deleted;
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException ex) {
+                e.addSuppressed(ex);
+            }
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Flags the user as deleted and leaves the rows that refer to it to a background purge.
+     *
+     * @return false if the user does not exist or is deleted already
+     */
+    boolean softDelete(Connection conn, long mid) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE UserRecord SET is_deleted = true WHERE mid = ? AND is_deleted IS NOT TRUE")) {
+            stmt.setLong(1, mid);
+            if (stmt.executeUpdate() == 0) {
+                return false;
+            }
+        }
+        // gone for authentication and the recommendations now, the user infos follow with the purge
+        forget(mid);
+        schedulePurge(mid);
+        return true;
+    }
+
+    private void schedulePurge(long mid) {
+        purger.execute(() -> {
+            try (Connection conn = dataSource.getConnection()) {
+                purge(conn, mid);
+            } catch (SQLException e) {
+                // still flagged, so the next start retries it
+                log.error("Failed to purge the deleted account {}", mid, e);
+            }
+        });
+    }
+
+    private void purge(Connection conn, long mid) throws SQLException {
+        long start = System.currentTimeMillis();
+        int batchSize = Math.max(1, config.getDeleteAccountBatchSize());
+        long rows = 0;
+        conn.setAutoCommit(false);
+        try {
+            // drop the row the triggers would update first, then nothing refers to the user's own rows any more
+            rows += deleteByMid(conn, "UserInfoResp", "mid", mid);
+            List<String> viewed = new ArrayList<>();
+            collectViews(conn, mid, viewed);
+            conn.commit();
+            for (String[] table : OWN_ROWS) {
+                String sql = "DELETE FROM " + table[0] + " WHERE ctid = ANY (ARRAY(SELECT ctid FROM " + table[0]
+                        + " WHERE " + table[1] + " = ? LIMIT ?))";
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setLong(1, mid);
+                    stmt.setInt(2, batchSize);
+                    int deleted;
+                    do {
+                        skipTriggers(conn);
+                        deleted = stmt.executeUpdate();
+                        conn.commit();
+                        rows += deleted;
+                    } while (deleted == batchSize);
+                }
+            }
+            Set<Long> affected = new HashSet<>();
+            List<String> videos = new ArrayList<>();
+            deleteRows(conn, mid, affected, viewed, videos);
+            conn.commit();
+            userInfoCache.invalidate(mid);
+            userInfoCache.invalidate(affected);
+            forgetVideos(viewed, videos);
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException ex) {
+                e.addSuppressed(ex);
+            }
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        log.debug("Purged the deleted account {} and {} own rows in {} ms", mid, rows, System.currentTimeMillis() - start);
+    }
+
+    // the statements of one deletion, in the transaction of the caller;
+    // collects the users whose infos changed, the videos the user watched and the videos it posted
+    private boolean deleteRows(Connection conn, long mid, Set<Long> affected, List<String> viewed, List<String> videos) throws SQLException {
+        String identity;
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT identity FROM UserRecord WHERE mid = ? FOR UPDATE")) {
+            stmt.setLong(1, mid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return false;
+                }
+                identity = rs.getString(1);
+            }
+        }
+        skipTriggers(conn);
+
+        // the follow edges both ways, and the user in the lists of the other side
+        String sql_follow = """
+                WITH removed AS (DELETE FROM user_follow
+                                 WHERE follower = ? OR followee = ?
+                                 RETURNING follower, followee)
+                UPDATE UserInfoResp
+                SET following = array_remove(following, ?),
+                    follower  = array_remove(follower, ?)
+                WHERE mid IN (SELECT followee FROM removed UNION SELECT follower FROM removed)
+                  AND mid <> ?
+                RETURNING mid
+                """;
+        try (PreparedStatement stmt = conn.prepareStatement(sql_follow)) {
+            for (int i = 1; i <= 5; i++) {
+                stmt.setLong(i, mid);
+            }
+            collectMids(stmt, affected);
+        }
+
+        // the videos of the user, with everything of the others on them
+        List<String> bvs = videos;
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT bv FROM VideoRecord WHERE ownerMid = ?")) {
+            stmt.setLong(1, mid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    bvs.add(rs.getString(1));
+                }
+            }
+        }
+        if (!bvs.isEmpty()) {
+            Array array = conn.createArrayOf("varchar", bvs.toArray());
+            String sql_videos = """
+                    WITH viewed AS (DELETE FROM ViewRecord WHERE bv = ANY (?) RETURNING mid),
+                         liked AS (DELETE FROM likes WHERE BV_liked = ANY (?) RETURNING mid_liked),
+                         collected AS (DELETE FROM favorites WHERE BV_favorite = ANY (?) RETURNING mid_favorite),
+                         coined AS (DELETE FROM coins WHERE BV_coin = ANY (?)),
+                         danmu AS (DELETE FROM DanmuRecord WHERE bv = ANY (?))
+                    UPDATE UserInfoResp ui
+                    SET watched   = ARRAY(SELECT b FROM unnest(ui.watched) b WHERE b <> ALL (?)),
+                        liked     = ARRAY(SELECT b FROM unnest(ui.liked) b WHERE b <> ALL (?)),
+                        collected = ARRAY(SELECT b FROM unnest(ui.collected) b WHERE b <> ALL (?))
+                    WHERE ui.mid IN (SELECT mid FROM viewed
+                                     UNION SELECT mid_liked FROM liked
+                                     UNION SELECT mid_favorite FROM collected)
+                      AND ui.mid <> ?
+                    RETURNING ui.mid
+                    """;
+            try (PreparedStatement stmt = conn.prepareStatement(sql_videos)) {
+                for (int i = 1; i <= 8; i++) {
+                    stmt.setArray(i, array);
+                }
+                stmt.setLong(9, mid);
+                collectMids(stmt, affected);
+            }
+            deleteByMid(conn, "VideoRecord", "ownerMid", mid);
+        }
+        if ("superuser".equalsIgnoreCase(identity)) {
+            // the reviewed videos stay reviewed, only the reference goes; no index, but only superusers review
+            try (PreparedStatement stmt = conn.prepareStatement("UPDATE VideoRecord SET reviewer = NULL WHERE reviewer = ?")) {
+                stmt.setLong(1, mid);
+                stmt.executeUpdate();
+            }
+        }
+
+        // UserInfoResp first, the own rows only ever update that row
+        deleteByMid(conn, "UserInfoResp", "mid", mid);
+        collectViews(conn, mid, viewed);
+        for (String[] table : OWN_ROWS) {
+            deleteByMid(conn, table[0], table[1], mid);
+        }
+        deleteByMid(conn, "AuthInfo", "mid", mid);
+        return deleteByMid(conn, "UserRecord", "mid", mid) == 1;
+    }
+
+    // within the current transaction the UserInfoResp row triggers return immediately
+    private static void skipTriggers(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SELECT set_config('sustc.account_delete', 'on', true)");
+        }
+    }
+
+    // the view counts of the search index lose the views of the user
+    private void collectViews(Connection conn, long mid, List<String> viewed) throws SQLException {
+        if (!videoSearchIndex.isLoaded()) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT bv FROM ViewRecord WHERE mid = ?")) {
+            stmt.setLong(1, mid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    viewed.add(rs.getString(1));
+                }
+            }
+        }
+    }
+
+    private void forgetVideos(List<String> viewed, List<String> videos) {
+        videoSearchIndex.removeViews(viewed);
+        for (String bv : videos) {
+            videoSearchIndex.remove(bv);
+        }
+        // the views of the user are gone even if the search index did not collect them
+        searchResultCache.bump();
+    }
+
+    private static int deleteByMid(Connection conn, String table, String column, long mid) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + table + " WHERE " + column + " = ?")) {
+            stmt.setLong(1, mid);
+            return stmt.executeUpdate();
+        }
+    }
+
+    private static void collectMids(PreparedStatement stmt, Set<Long> mids) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                mids.add(rs.getLong(1));
+            }
+        }
+    }
+
+    private void forget(long mid) {
+        // the credentials of the deleted user must not authenticate from the cache any more
+        authCache.invalidate(mid);
+        socialGraph.removeUser(mid);
+        userInfoCache.invalidate(mid);
+    }
+}
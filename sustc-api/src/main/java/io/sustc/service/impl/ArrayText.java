@@ -0,0 +1,101 @@
+package io.sustc.service.impl;
+
+import java.util.Arrays;
+
+/**
+ * Decodes one-dimensional arrays selected as text, e.g. {@code following::text}, straight into java arrays.
+ * <p>
+ * {@link java.sql.Array#getArray()} boxes every element of a bigint array, parsing {@code {1,2,3}} does not.
+ * NULL elements are skipped, and a NULL array decodes to an empty one.
+ */
+final class ArrayText {
+
+    private static final long[] NO_LONGS = new long[0];
+    private static final String[] NO_STRINGS = new String[0];
+
+    private ArrayText() {
+    }
+
+    static long[] longs(String text) {
+        if (text == null || text.length() <= 2) {
+            return NO_LONGS;
+        }
+        int count = 1;
+        for (int i = 1; i < text.length() - 1; i++) {
+            if (text.charAt(i) == ',') {
+                count++;
+            }
+        }
+        long[] values = new long[count];
+        int n = 0;
+        int i = 1;
+        int end = text.length() - 1;
+        while (i < end) {
+            if (text.charAt(i) == 'N') {
+                // NULL
+                i += 5;
+                continue;
+            }
+            boolean negative = text.charAt(i) == '-';
+            if (negative) {
+                i++;
+            }
+            long value = 0;
+            while (i < end && text.charAt(i) != ',') {
+                value = value * 10 + text.charAt(i++) - '0';
+            }
+            values[n++] = negative ? -value : value;
+            i++;
+        }
+        return n == count ? values : Arrays.copyOf(values, n);
+    }
+
+    static String[] strings(String text) {
+        if (text == null || text.length() <= 2) {
+            return NO_STRINGS;
+        }
+        int count = 1;
+        boolean quoted = false;
+        for (int i = 1; i < text.length() - 1; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                count++;
+            }
+        }
+        String[] values = new String[count];
+        int n = 0;
+        int i = 1;
+        int end = text.length() - 1;
+        StringBuilder sb = new StringBuilder();
+        while (i < end) {
+            if (text.charAt(i) == '"') {
+                // quoted element, with backslash escapes
+                sb.setLength(0);
+                i++;
+                while (text.charAt(i) != '"') {
+                    if (text.charAt(i) == '\\') {
+                        i++;
+                    }
+                    sb.append(text.charAt(i++));
+                }
+                values[n++] = sb.toString();
+                i += 2;
+                continue;
+            }
+            int start = i;
+            while (i < end && text.charAt(i) != ',') {
+                i++;
+            }
+            // an unquoted NULL is a null element, the string "NULL" would be quoted
+            if (i - start != 4 || !text.startsWith("NULL", start)) {
+                values[n++] = text.substring(start, i);
+            }
+            i++;
+        }
+        return n == count ? values : Arrays.copyOf(values, n);
+    }
+}
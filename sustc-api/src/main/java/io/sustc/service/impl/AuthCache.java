@@ -0,0 +1,130 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers successful authentications, so that a service call does not look the user up again
+ * for every {@link AuthInfo} it receives.
+ * <p>
+ * An entry is keyed by the credential that authenticated the user (wechat, qq, or mid and password,
+ * in the order {@link UserImpl#resolve} checks them) and holds the {@link Principal} of the user.
+ * Failed authentications are not cached, a user registered later must not be shadowed by them.
+ * <p>
+ * Entries expire after {@code sustc.auth-cache-ttl-seconds}. When the cache grows past {@code sustc.auth-cache-size},
+ * expired entries are dropped first, then arbitrary ones until a tenth of the capacity is free again,
+ * so the sweep runs once per that many insertions.
+ * Anything that deletes a user or changes credentials has to call {@link #invalidate(long)} or {@link #clear()}.
+ */
+@Component
+public class AuthCache {
+
+    /**
+     * @param expiresAt {@link System#nanoTime()} after which the entry is stale
+     */
+    private record Entry(Principal principal, long expiresAt) {
+    }
+
+    @Autowired
+    private SustcConfig config;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // bumped by every invalidation, a lookup that started before one must not put its result
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Returns the key of the credential {@link UserImpl#resolve} authenticates with, or null if there is none.
+     * The prefixes keep a qq number from colliding with a wechat id.
+     */
+    static String key(AuthInfo auth) {
+        if (auth == null) {
+            return null;
+        }
+        if (auth.getWechat() != null && !auth.getWechat().equals("null")) {
+            return "w:" + auth.getWechat();
+        }
+        if (auth.getQq() != null && !auth.getQq().equals("null")) {
+            return "q:" + auth.getQq();
+        }
+        if (auth.getMid() != 0) {
+            return "m:" + auth.getMid() + ":" + auth.getPassword();
+        }
+        return null;
+    }
+
+    Principal get(String key) {
+        if (key == null || config.getAuthCacheSize() <= 0) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt() - System.nanoTime() < 0) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.principal();
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put}, taken before the user is looked up.
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the valid principal looked up for the key.
+     */
+    void put(String key, Principal principal, long generation) {
+        int capacity = config.getAuthCacheSize();
+        if (key == null || capacity <= 0 || !principal.valid()) {
+            return;
+        }
+        Entry entry = new Entry(principal, System.nanoTime() + config.getAuthCacheTtlSeconds() * 1_000_000_000L);
+        entries.put(key, entry);
+        if (this.generation.get() != generation) {
+            // the lookup may have read a user that has been invalidated meanwhile
+            entries.remove(key, entry);
+            return;
+        }
+        if (entries.size() > capacity) {
+            evict(capacity - capacity / 10);
+        }
+    }
+
+    private void evict(int target) {
+        long now = System.nanoTime();
+        entries.values().removeIf(e -> e.expiresAt() - now < 0);
+        // ConcurrentHashMap iterates in hash order, which makes this a random eviction
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops every entry of the user, e.g. when the account is deleted, its credentials change or it spends coins.
+     */
+    void invalidate(long mid) {
+        generation.incrementAndGet();
+        entries.values().removeIf(e -> e.principal().mid() == mid);
+    }
+
+    /**
+     * Drops every entry, for changes to many users at once such as an import or truncate.
+     */
+    void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+}
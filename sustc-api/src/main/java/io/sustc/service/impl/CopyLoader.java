@@ -0,0 +1,65 @@
+package io.sustc.service.impl;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.function.BiConsumer;
+
+/**
+ * Loads records into a table with PostgreSQL {@code COPY ... FROM STDIN} instead of batched INSERTs.
+ * <p>
+ * Each record is encoded by the given encoder into zero or more rows of a {@link CopyWriter},
+ * and the buffered rows are shipped to the server whenever the buffer grows past {@link #FLUSH_THRESHOLD}.
+ */
+class CopyLoader {
+
+    private static final int FLUSH_THRESHOLD = 1 << 20;
+
+    // the import threads live as long as the import, so each keeps one buffer for all of its chunks
+    private static final ThreadLocal<CopyWriter> WRITER = ThreadLocal.withInitial(CopyWriter::new);
+
+    private final CopyManager copyManager;
+
+    CopyLoader(Connection conn) throws SQLException {
+        // the connection from Hikari is a proxy, unwrap it to reach the PgJDBC copy API
+        this.copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+    }
+
+    /**
+     * Copies all records into the table.
+     *
+     * @param sql     the {@code COPY table (columns) FROM STDIN} statement
+     * @param records the records to load
+     * @param encoder writes the rows of one record
+     * @return the number of rows loaded
+     */
+    <T> long copy(String sql, Iterable<T> records, BiConsumer<T, CopyWriter> encoder) throws SQLException {
+        CopyWriter writer = WRITER.get();
+        writer.clear();
+        CopyIn copyIn = copyManager.copyIn(sql);
+        try {
+            for (T record : records) {
+                encoder.accept(record, writer);
+                if (writer.size() >= FLUSH_THRESHOLD) {
+                    flush(copyIn, writer);
+                }
+            }
+            flush(copyIn, writer);
+            return copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+    }
+
+    private static void flush(CopyIn copyIn, CopyWriter writer) throws SQLException {
+        if (writer.size() > 0) {
+            copyIn.writeToCopy(writer.buffer(), 0, writer.size());
+            writer.clear();
+        }
+    }
+}
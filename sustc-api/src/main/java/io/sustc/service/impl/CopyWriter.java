@@ -0,0 +1,280 @@
+package io.sustc.service.impl;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+
+/**
+ * Builds rows in the text format of PostgreSQL {@code COPY ... FROM STDIN}.
+ * <p>
+ * Columns are separated by a tab and rows end with a newline,
+ * {@code \N} stands for {@code NULL} and backslash, tab, newline and carriage return inside values are escaped.
+ * Reference: <a href="https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.2">COPY text format</a>
+ * <p>
+ * Values are encoded as UTF-8 straight into a growing byte buffer that is reused after every {@link #clear()},
+ * numbers and timestamps are formatted digit by digit, so writing a row allocates nothing in the common case.
+ */
+class CopyWriter {
+
+    private byte[] buf = new byte[1 << 16];
+
+    private int len;
+
+    // whether the next column is the first one of the current row
+    private boolean rowStart = true;
+
+    // StringBuilder.append(double) formats into the builder without creating a String
+    private final StringBuilder scratch = new StringBuilder(32);
+
+    private final ZoneRules zone = ZoneId.systemDefault().getRules();
+
+    // the offset of the default time zone if it never changes, which saves the lookup per timestamp
+    private final ZoneOffset fixedOffset = zone.isFixedOffset() ? zone.getOffset(Instant.EPOCH) : null;
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            byte[] grown = new byte[Math.max(buf.length * 2, len + n)];
+            System.arraycopy(buf, 0, grown, 0, len);
+            buf = grown;
+        }
+    }
+
+    private void put(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+    }
+
+    private void sep() {
+        if (!rowStart) {
+            put('\t');
+        }
+        rowStart = false;
+    }
+
+    private void putLong(long value) {
+        ensure(20);
+        // digits are taken from the negated value, which also covers Long.MIN_VALUE
+        if (value < 0) {
+            buf[len++] = '-';
+        } else {
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        for (int i = len + digits - 1; i >= len; i--) {
+            buf[i] = (byte) ('0' - value % 10);
+            value /= 10;
+        }
+        len += digits;
+    }
+
+    // writes a non-negative number zero-padded to the given width
+    private void putPadded(long value, int width) {
+        ensure(width);
+        for (int i = len + width - 1; i >= len; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        len += width;
+    }
+
+    CopyWriter nul() {
+        sep();
+        ensure(2);
+        buf[len++] = '\\';
+        buf[len++] = 'N';
+        return this;
+    }
+
+    CopyWriter field(long value) {
+        sep();
+        putLong(value);
+        return this;
+    }
+
+    CopyWriter field(boolean value) {
+        sep();
+        put(value ? 't' : 'f');
+        return this;
+    }
+
+    /**
+     * Writes a float that is stored into a {@code float8} column.
+     * The value is widened to double first, so the column holds the same value as
+     * {@link java.sql.PreparedStatement#setFloat(int, float)} would have produced.
+     */
+    CopyWriter field(float value) {
+        sep();
+        scratch.setLength(0);
+        scratch.append((double) value);
+        ensure(scratch.length());
+        for (int i = 0; i < scratch.length(); i++) {
+            buf[len++] = (byte) scratch.charAt(i);
+        }
+        return this;
+    }
+
+    CopyWriter field(String value) {
+        if (value == null) {
+            return nul();
+        }
+        sep();
+        // at most 3 bytes per char, a surrogate pair takes 4 bytes for 2 chars
+        ensure(value.length() * 3);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '\\' -> {
+                        buf[len++] = '\\';
+                        buf[len++] = '\\';
+                    }
+                    case '\t' -> {
+                        buf[len++] = '\\';
+                        buf[len++] = 't';
+                    }
+                    case '\n' -> {
+                        buf[len++] = '\\';
+                        buf[len++] = 'n';
+                    }
+                    case '\r' -> {
+                        buf[len++] = '\\';
+                        buf[len++] = 'r';
+                    }
+                    default -> buf[len++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xc0 | c >> 6);
+                buf[len++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buf[len++] = (byte) (0xf0 | cp >> 18);
+                buf[len++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                buf[len++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                buf[len++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                // an unpaired surrogate, replaced the same way as String.getBytes does
+                buf[len++] = '?';
+            } else {
+                buf[len++] = (byte) (0xe0 | c >> 12);
+                buf[len++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buf[len++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a timestamp the way {@link Timestamp#toString()} does, in the default time zone.
+     */
+    CopyWriter field(Timestamp value) {
+        if (value == null) {
+            return nul();
+        }
+        long seconds = Math.floorDiv(value.getTime(), 1000);
+        int offset = fixedOffset != null
+                ? fixedOffset.getTotalSeconds()
+                : zone.getOffset(Instant.ofEpochSecond(seconds)).getTotalSeconds();
+        long local = seconds + offset;
+        long days = Math.floorDiv(local, 86400);
+        int secondOfDay = Math.floorMod(local, 86400);
+
+        // civil date of the day count, proleptic Gregorian
+        long era = Math.floorDiv(days + 719468, 146097);
+        long dayOfEra = days + 719468 - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 1900 || year > 9999) {
+            // Timestamp uses the Julian calendar before 1582, keep its exact text outside the common range
+            return field(value.toString());
+        }
+
+        sep();
+        putPadded(year, 4);
+        put('-');
+        putPadded(month, 2);
+        put('-');
+        putPadded(day, 2);
+        put(' ');
+        putPadded(secondOfDay / 3600, 2);
+        put(':');
+        putPadded(secondOfDay / 60 % 60, 2);
+        put(':');
+        putPadded(secondOfDay % 60, 2);
+        put('.');
+        int nanos = value.getNanos();
+        if (nanos == 0) {
+            put('0');
+        } else {
+            int width = 9;
+            while (nanos % 10 == 0) {
+                nanos /= 10;
+                width--;
+            }
+            putPadded(nanos, width);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a {@code date} literal such as {@code 2000-3-5}.
+     */
+    CopyWriter date(int year, int month, int day) {
+        sep();
+        putLong(year);
+        put('-');
+        putLong(month);
+        put('-');
+        putLong(day);
+        return this;
+    }
+
+    /**
+     * Writes a {@code bigint[]} literal such as {@code {1,2,3}}.
+     */
+    CopyWriter field(long[] values) {
+        if (values == null) {
+            return nul();
+        }
+        sep();
+        put('{');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                put(',');
+            }
+            putLong(values[i]);
+        }
+        put('}');
+        return this;
+    }
+
+    void endRow() {
+        put('\n');
+        rowStart = true;
+    }
+
+    int size() {
+        return len;
+    }
+
+    /**
+     * Returns the buffer holding the rows written so far in its first {@link #size()} bytes.
+     * It is only valid until the next write.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    void clear() {
+        len = 0;
+        rowStart = true;
+    }
+}
@@ -17,17 +17,19 @@ class DanmuServiceImpl implements DanmuService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private UserImpl userImpl;
+
     @Override
     public long sendDanmu(AuthInfo auth, String bv, String content, float time) {
         String sql_danmu = "INSERT INTO DanmuRecord (bv, mid, time, content, postTime, likedBy) VALUES (?, ?, ?, ?, ?, ?) RETURNING danmu_id;";
         Timestamp now = Timestamp.valueOf(LocalDateTime.now());
-        UserImpl userimpl = new UserImpl();
         try (Connection conn = dataSource.getConnection()) {
-            if (!userimpl.isValidAuth(auth, conn)) {
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
                 return -1;
-            } else {
-                auth = userimpl.construct_full_authinfo(auth, conn);
             }
+            auth = principal.toAuthInfo();
             if (!is_valid_bv(bv, conn) || !is_valid_content(content) || !is_valid_video(bv, auth, now, conn, time)) {
                 return -1;
             }
@@ -139,13 +141,12 @@ class DanmuServiceImpl implements DanmuService {
 
     @Override
     public boolean likeDanmu(AuthInfo auth, long id) {
-        UserImpl userimpl = new UserImpl();
         try (Connection con = dataSource.getConnection()) {
-            if (!userimpl.isValidAuth(auth, con)) {
+            Principal principal = userImpl.resolve(auth, con);
+            if (!principal.valid()) {
                 return false;
-            } else {
-                auth = userimpl.construct_full_authinfo(auth, con);
             }
+            auth = principal.toAuthInfo();
             String sql_find_danmu = """
                     select bv,likedby,time
                     from danmurecord
@@ -0,0 +1,82 @@
+package io.sustc.service.impl;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records which chunks of an import have been loaded, so a restarted import can skip them.
+ * <p>
+ * A chunk is identified by the table it was copied into and its position in the record stream.
+ * The checkpoint is written in the same transaction as the COPY of the chunk,
+ * so a chunk is either loaded and recorded, or neither.
+ * Chunk positions only line up if the restarted import reads the same records with the same chunk size,
+ * which is therefore recorded as well.
+ */
+class ImportCheckpoint {
+
+    static final String TABLE = "import_checkpoint";
+
+    private ImportCheckpoint() {
+    }
+
+    static void createTable(Connection conn) throws SQLException {
+        String sql = """
+                CREATE TABLE IF NOT EXISTS import_checkpoint
+                (
+                    table_name varchar(255), -- the table the chunk was copied into
+                    chunk_no   int,          -- position of the chunk in its record stream
+                    chunk_size int,          -- records per chunk when the chunk was loaded
+                    rows       bigint,       -- rows copied into the table from the chunk
+                    primary key (table_name, chunk_no)
+                );
+                """;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    /**
+     * Returns the rows of every loaded chunk of the table by chunk number.
+     *
+     * @throws IllegalStateException if the chunks were loaded with another chunk size
+     */
+    static Map<Integer, Long> loaded(Connection conn, String table, int chunkSize) throws SQLException {
+        Map<Integer, Long> chunks = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT chunk_no, chunk_size, rows FROM import_checkpoint WHERE table_name = ?")) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getInt(2) != chunkSize) {
+                        throw new IllegalStateException("Chunks of " + table + " were loaded with chunk size " + rs.getInt(2)
+                                + ", resume with the same size or truncate first");
+                    }
+                    chunks.put(rs.getInt(1), rs.getLong(3));
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Records a chunk, on the connection and in the transaction that copied it.
+     */
+    static void record(Connection conn, String table, int chunkNo, int chunkSize, long rows) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO import_checkpoint (table_name, chunk_no, chunk_size, rows) VALUES (?, ?, ?, ?)")) {
+            stmt.setString(1, table);
+            stmt.setInt(2, chunkNo);
+            stmt.setInt(3, chunkSize);
+            stmt.setLong(4, rows);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Forgets every chunk once the import has finished.
+     */
+    static void clear(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS import_checkpoint");
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package io.sustc.service.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters of an import: rows and rows per second of every table,
+ * and records done of the current stage with an ETA if the stage knows its total.
+ * Rows of chunks skipped by a resumed import count as loaded, but not towards the rates.
+ */
+class ImportProgress {
+
+    private static class TableProgress {
+
+        private final long startNanos = System.nanoTime();
+
+        // the rate of a finished table stays at its final value
+        private volatile long lastNanos = startNanos;
+
+        private final AtomicLong rows = new AtomicLong();
+
+        private final AtomicLong resumed = new AtomicLong();
+    }
+
+    // in load order
+    private final Map<String, TableProgress> tables = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private volatile String stage;
+
+    // -1 if the stream does not know its size
+    private volatile long stageTotal;
+
+    private volatile long stageStartNanos;
+
+    private final AtomicLong stageDone = new AtomicLong();
+
+    private final AtomicLong stageSkipped = new AtomicLong();
+
+    void startStage(String stage, long total, String... tables) {
+        this.stage = stage;
+        this.stageTotal = total;
+        this.stageStartNanos = System.nanoTime();
+        this.stageDone.set(0);
+        this.stageSkipped.set(0);
+        for (String table : tables) {
+            this.tables.computeIfAbsent(table, k -> new TableProgress());
+        }
+    }
+
+    void chunkLoaded(int records) {
+        stageDone.addAndGet(records);
+    }
+
+    void chunkSkipped(int records) {
+        stageDone.addAndGet(records);
+        stageSkipped.addAndGet(records);
+    }
+
+    void rowsLoaded(String table, long rows) {
+        TableProgress progress = tables.get(table);
+        progress.rows.addAndGet(rows);
+        progress.lastNanos = System.nanoTime();
+    }
+
+    void rowsResumed(String table, long rows) {
+        tables.get(table).resumed.addAndGet(rows);
+    }
+
+    long rows(String table) {
+        TableProgress progress = tables.get(table);
+        return progress == null ? 0 : progress.rows.get() + progress.resumed.get();
+    }
+
+    /**
+     * e.g. {@code videos: 120000/500000 records, ETA 38 s | VideoRecord 120000 rows 10000/s, ViewRecord ...}
+     */
+    String report() {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder();
+        long done = stageDone.get();
+        sb.append(stage).append(": ").append(done);
+        if (stageTotal >= 0) {
+            sb.append('/').append(stageTotal);
+        }
+        sb.append(" records");
+        long loaded = done - stageSkipped.get();
+        double seconds = (now - stageStartNanos) / 1e9;
+        if (stageTotal >= 0 && loaded > 0 && seconds > 0) {
+            long eta = Math.round((stageTotal - done) / (loaded / seconds));
+            sb.append(", ETA ").append(eta).append(" s");
+        }
+        tables.forEach((table, progress) -> {
+            double elapsed = (progress.lastNanos - progress.startNanos) / 1e9;
+            long rows = progress.rows.get();
+            sb.append(" | ").append(table).append(' ').append(rows + progress.resumed.get()).append(" rows ")
+                    .append(elapsed > 0 ? Math.round(rows / elapsed) : 0).append("/s");
+        });
+        return sb.toString();
+    }
+}
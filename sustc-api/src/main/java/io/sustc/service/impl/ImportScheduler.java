@@ -0,0 +1,259 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the COPY tasks of an import in stages on separate pooled connections.
+ * <p>
+ * The records of a stream are pulled in chunks of {@code chunkSize}, and every chunk is copied on its own connection.
+ * At most two chunks per shard are in flight, so the memory used by an import stays bounded
+ * no matter how many records the streams hold.
+ * {@link #await()} is the barrier between stages,
+ * e.g. UserRecord must be loaded before VideoRecord, which must be loaded before DanmuRecord.
+ * <p>
+ * With checkpoints enabled, every chunk is copied in one transaction together with its {@link ImportCheckpoint},
+ * and the chunks recorded by an earlier, failed import are read but not copied again.
+ */
+@Slf4j
+class ImportScheduler implements AutoCloseable {
+
+    /**
+     * One table loaded from the records of a stream.
+     *
+     * @param table   the table name used for checkpoints, row counting and logging
+     * @param sql     the {@code COPY ... FROM STDIN} statement
+     * @param encoder writes the rows of one record
+     */
+    record Step<T>(String table, String sql, BiConsumer<T, CopyWriter> encoder) {
+    }
+
+    private final DataSource dataSource;
+
+    private final int chunkSize;
+
+    private final boolean checkpoints;
+
+    private final ExecutorService executor;
+
+    private final ScheduledExecutorService reporter;
+
+    // bounds the chunks that are read but not yet loaded
+    private final Semaphore inFlight;
+
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final ImportProgress progress = new ImportProgress();
+
+    private volatile String stage;
+
+    private long stageStart;
+
+    /**
+     * @param checkpoints      whether loaded chunks are recorded and skipped when the import is restarted
+     * @param progressInterval seconds between progress reports, or 0 for none
+     */
+    ImportScheduler(DataSource dataSource, int shards, int chunkSize, boolean checkpoints, int progressInterval) throws SQLException {
+        this.dataSource = dataSource;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.checkpoints = checkpoints;
+        shards = Math.max(1, shards);
+        this.inFlight = new Semaphore(shards * 2);
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(shards, r -> {
+            Thread t = new Thread(r, "import-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "import-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        if (progressInterval > 0) {
+            reporter.scheduleAtFixedRate(() -> {
+                if (stage != null) {
+                    log.info("Import {}", progress.report());
+                }
+            }, progressInterval, progressInterval, TimeUnit.SECONDS);
+        }
+        if (checkpoints) {
+            try (Connection conn = dataSource.getConnection()) {
+                ImportCheckpoint.createTable(conn);
+            }
+        }
+    }
+
+    /**
+     * Reads the records chunk by chunk and submits one task per chunk.
+     * The task copies the chunk into each table of {@code steps} in order on the same connection,
+     * so a table may reference the rows loaded by the steps before it.
+     *
+     * @param total the number of records, or -1 if unknown, only used for the ETA
+     */
+    @SafeVarargs
+    final <T> void submit(String stage, long total, Iterator<T> records, Step<T>... steps) throws SQLException {
+        this.stage = stage;
+        this.stageStart = System.currentTimeMillis();
+        // the tasks get a copy of the steps, the generic varargs array must not escape this method
+        List<Step<T>> stepList = new ArrayList<>(steps.length);
+        String[] tables = new String[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            stepList.add(steps[i]);
+            tables[i] = steps[i].table();
+        }
+        progress.startStage(stage, total, tables);
+
+        // the steps of a chunk are recorded in one transaction, so the first table tells whether the chunk is done
+        List<Map<Integer, Long>> loaded = new ArrayList<>();
+        if (checkpoints) {
+            try (Connection conn = dataSource.getConnection()) {
+                for (Step<T> step : steps) {
+                    loaded.add(ImportCheckpoint.loaded(conn, step.table(), chunkSize));
+                }
+            }
+            if (!loaded.get(0).isEmpty()) {
+                log.info("Resuming import stage {}, skipping {} loaded chunks", stage, loaded.get(0).size());
+            }
+        }
+
+        int chunkNo = 0;
+        while (records.hasNext() && failure.get() == null) {
+            List<T> chunk = new ArrayList<>(chunkSize);
+            while (chunk.size() < chunkSize && records.hasNext()) {
+                chunk.add(records.next());
+            }
+            int no = chunkNo++;
+            if (checkpoints && loaded.get(0).containsKey(no)) {
+                for (int i = 0; i < steps.length; i++) {
+                    progress.rowsResumed(steps[i].table(), loaded.get(i).getOrDefault(no, 0L));
+                }
+                progress.chunkSkipped(chunk.size());
+                continue;
+            }
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            pending.add(executor.submit(() -> {
+                try (Connection conn = dataSource.getConnection()) {
+                    load(conn, no, chunk, stepList);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                    throw e;
+                } finally {
+                    inFlight.release();
+                }
+                return null;
+            }));
+        }
+    }
+
+    private <T> void load(Connection conn, int chunkNo, List<T> chunk, List<Step<T>> steps) throws SQLException {
+        CopyLoader loader = new CopyLoader(conn);
+        if (!checkpoints) {
+            for (Step<T> step : steps) {
+                progress.rowsLoaded(step.table(), loader.copy(step.sql(), chunk, step.encoder()));
+            }
+            progress.chunkLoaded(chunk.size());
+            return;
+        }
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            long[] rows = new long[steps.size()];
+            for (int i = 0; i < steps.size(); i++) {
+                rows[i] = loader.copy(steps.get(i).sql(), chunk, steps.get(i).encoder());
+                ImportCheckpoint.record(conn, steps.get(i).table(), chunkNo, chunkSize, rows[i]);
+            }
+            conn.commit();
+            // counted only once committed, a rolled back chunk is loaded again by the next import
+            for (int i = 0; i < steps.size(); i++) {
+                progress.rowsLoaded(steps.get(i).table(), rows[i]);
+            }
+            progress.chunkLoaded(chunk.size());
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Waits until every task of the current stage finishes.
+     * If any task fails, the remaining ones are cancelled and the failure is rethrown.
+     */
+    void await() throws SQLException {
+        try {
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            pending.forEach(f -> f.cancel(true));
+            if (e.getCause() instanceof SQLException cause) {
+                throw cause;
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            pending.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            pending.clear();
+        }
+        log.debug("Import stage {} finished in {} ms", stage, System.currentTimeMillis() - stageStart);
+        // nothing to report until the next stage starts
+        stage = null;
+    }
+
+    /**
+     * Returns the number of rows loaded into the table so far, including the chunks loaded by an earlier import.
+     */
+    long rows(String table) {
+        return progress.rows(table);
+    }
+
+    /**
+     * Forgets the checkpoints once the whole import has succeeded.
+     */
+    void complete() throws SQLException {
+        if (checkpoints) {
+            try (Connection conn = dataSource.getConnection()) {
+                ImportCheckpoint.clear(conn);
+            }
+        }
+    }
+
+    /**
+     * Stops the tasks that have not started and waits for the running ones,
+     * so that no chunk of a failed import still holds locks when the next import starts.
+     */
+    @Override
+    public void close() {
+        reporter.shutdownNow();
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
+                log.warn("Import tasks are still running after close");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads an import into UNLOGGED copies of the import tables and swaps them into place at the end.
+ * <p>
+ * The copies live in the schema {@link #SCHEMA} under the same names, so the COPY statements and the
+ * materialization run unchanged on the connections of {@link #dataSource()}, whose search path is that schema.
+ * Readers keep seeing the old tables until {@link #swap()}.
+ * Swapping in copies that were never loaded is how truncate recreates the tables.
+ * <ol>
+ *   <li>{@link #prepare()} creates the copies with columns, defaults and checks, but without keys and indexes</li>
+ *   <li>the import loads them, skipping the WAL since they are unlogged</li>
+ *   <li>{@link #publish()} switches them to LOGGED, builds keys and indexes and validates the foreign keys</li>
+ *   <li>{@link #swap()} drops the old tables and moves the copies to {@code public} in one short transaction,
+ *   then recreates the triggers of the old tables on them</li>
+ * </ol>
+ */
+@Slf4j
+class ImportStaging {
+
+    static final String SCHEMA = "import_staging";
+
+    private final DataSource dataSource;
+
+    private final List<String> tables;
+
+    private final int parallelism;
+
+    /**
+     * @param tables      lower case names of the tables in the public schema
+     * @param parallelism the number of connections used at the same time
+     */
+    ImportStaging(DataSource dataSource, List<String> tables, int parallelism) {
+        this.dataSource = dataSource;
+        this.tables = tables;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Returns a data source whose connections resolve unqualified table names to the staging copies.
+     * Public stays on the search path behind it for the extension objects, e.g. the operator class of the trigram indexes.
+     * The search path is reset when a connection is closed, the pool only restores it if a schema is configured.
+     */
+    DataSource dataSource() {
+        return new DelegatingDataSource(dataSource) {
+            @Override
+            public Connection getConnection() throws SQLException {
+                Connection conn = super.getConnection();
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SET search_path TO " + SCHEMA + ", public");
+                }
+                return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                        (proxy, method, args) -> {
+                            if (method.getName().equals("close") && !conn.isClosed()) {
+                                try (Statement stmt = conn.createStatement()) {
+                                    stmt.execute("RESET search_path");
+                                }
+                            }
+                            try {
+                                return method.invoke(conn, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        });
+            }
+        };
+    }
+
+    /**
+     * Creates empty staging copies of the tables, dropping the leftovers of a failed import first.
+     */
+    void prepare() throws SQLException {
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+            stmt.execute("CREATE SCHEMA " + SCHEMA);
+            for (String table : tables) {
+                stmt.execute("CREATE UNLOGGED TABLE " + SCHEMA + "." + table
+                        + " (LIKE public." + table + " INCLUDING ALL EXCLUDING INDEXES)");
+            }
+        }
+    }
+
+    /**
+     * Makes the loaded copies durable and gives them the keys, indexes and foreign keys of the old tables.
+     */
+    void publish() throws SQLException {
+        long start = System.currentTimeMillis();
+        String sql_keys = """
+                SELECT t.relname, c.conname, pg_get_constraintdef(c.oid)
+                FROM pg_constraint c
+                         JOIN pg_class t ON t.oid = c.conrelid
+                WHERE c.contype IN ('p', 'u', 'x')
+                  AND t.relnamespace = 'public'::regnamespace
+                  AND t.relname = ANY (?);
+                """;
+        String sql_index = """
+                SELECT i.tablename, i.indexname, i.indexdef
+                FROM pg_indexes i
+                WHERE i.schemaname = 'public'
+                  AND i.tablename = ANY (?)
+                  AND NOT EXISTS (SELECT 1
+                                  FROM pg_constraint c
+                                  WHERE c.conindid = (quote_ident(i.schemaname) || '.' || quote_ident(i.indexname))::regclass);
+                """;
+        String sql_fk = """
+                SELECT t.relname, c.conname, pg_get_constraintdef(c.oid)
+                FROM pg_constraint c
+                         JOIN pg_class t ON t.oid = c.conrelid
+                WHERE c.contype = 'f'
+                  AND t.relnamespace = 'public'::regnamespace
+                  AND t.relname = ANY (?);
+                """;
+        // all DDL runs on connections whose search path starts with the staging schema, unqualified tables are the staging ones
+        DataSource staged = dataSource();
+        Map<String, List<String>> keys = new LinkedHashMap<>();
+        List<String[]> foreignKeys = new ArrayList<>();
+        try (Connection conn = dataSource.getConnection()) {
+            Array names = conn.createArrayOf("varchar", tables.toArray());
+            for (String[] row : query(conn, sql_keys, names)) {
+                keys.computeIfAbsent(row[0], k -> new ArrayList<>())
+                        .add("ALTER TABLE " + row[0] + " ADD CONSTRAINT " + SchemaDeferral.quote(row[1]) + " " + row[2]);
+            }
+            for (String[] row : query(conn, sql_index, names)) {
+                // pg_indexes always qualifies the table, point it at the staging copy
+                keys.computeIfAbsent(row[0], k -> new ArrayList<>())
+                        .add(row[2].replaceFirst(" ON public\\.", " ON " + SCHEMA + "."));
+            }
+            foreignKeys.addAll(query(conn, sql_fk, names));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            // 1. write the loaded rows to the WAL once, before any index exists
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (String table : tables) {
+                tasks.add(() -> execute(staged, List.of("ALTER TABLE " + table + " SET LOGGED")));
+            }
+            SchemaDeferral.runAll(executor, tasks);
+
+            // 2. keys and indexes, one table per connection
+            tasks.clear();
+            for (List<String> ddl : keys.values()) {
+                tasks.add(() -> execute(staged, ddl));
+            }
+            SchemaDeferral.runAll(executor, tasks);
+
+            // 3. foreign keys without checking, then validated per table in parallel
+            List<String> add = new ArrayList<>();
+            Map<String, List<String>> validate = new LinkedHashMap<>();
+            for (String[] fk : foreignKeys) {
+                add.add("ALTER TABLE " + fk[0] + " ADD CONSTRAINT " + SchemaDeferral.quote(fk[1]) + " " + fk[2] + " NOT VALID");
+                validate.computeIfAbsent(fk[0], k -> new ArrayList<>())
+                        .add("ALTER TABLE " + fk[0] + " VALIDATE CONSTRAINT " + SchemaDeferral.quote(fk[1]));
+            }
+            execute(staged, add);
+            tasks.clear();
+            for (List<String> ddl : validate.values()) {
+                tasks.add(() -> execute(staged, ddl));
+            }
+            SchemaDeferral.runAll(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        log.debug("Published {} staging tables in {} ms", tables.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Replaces the public tables with the staging copies in one transaction.
+     * Sequences owned by the old tables, e.g. the serial of DanmuRecord, are handed over to the copies.
+     */
+    void swap() throws SQLException {
+        String sql_trigger = """
+                SELECT pg_get_triggerdef(g.oid)
+                FROM pg_trigger g
+                         JOIN pg_class t ON t.oid = g.tgrelid
+                WHERE NOT g.tgisinternal
+                  AND t.relnamespace = 'public'::regnamespace
+                  AND t.relname = ANY (?);
+                """;
+        String sql_sequence = """
+                SELECT s.oid::regclass::text, t.relname, a.attname
+                FROM pg_depend d
+                         JOIN pg_class s ON s.oid = d.objid AND s.relkind = 'S'
+                         JOIN pg_class t ON t.oid = d.refobjid
+                         JOIN pg_attribute a ON a.attrelid = d.refobjid AND a.attnum = d.refobjsubid
+                WHERE d.deptype = 'a'
+                  AND t.relnamespace = 'public'::regnamespace
+                  AND t.relname = ANY (?);
+                """;
+        long start = System.currentTimeMillis();
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                Array names = conn.createArrayOf("varchar", tables.toArray());
+                List<String[]> triggers = query(conn, sql_trigger, names);
+                // the copies use the same sequences, they must not be dropped with the old tables
+                List<String[]> sequences = query(conn, sql_sequence, names);
+                for (String[] seq : sequences) {
+                    stmt.execute("ALTER SEQUENCE " + seq[0] + " OWNED BY NONE");
+                }
+                // the tables reference each other, so they are dropped by one statement
+                stmt.execute("DROP TABLE public." + String.join(", public.", tables));
+                for (String table : tables) {
+                    stmt.execute("ALTER TABLE " + SCHEMA + "." + table + " SET SCHEMA public");
+                }
+                for (String[] seq : sequences) {
+                    stmt.execute("ALTER SEQUENCE " + seq[0] + " OWNED BY public." + seq[1] + "." + SchemaDeferral.quote(seq[2]));
+                }
+                // the definitions name public.<table>, which is the new table now
+                for (String[] trigger : triggers) {
+                    stmt.execute(trigger[0]);
+                }
+                stmt.execute("DROP SCHEMA " + SCHEMA);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        log.info("Swapped {} staging tables into place in {} ms", tables.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Drops the staging copies of a failed import.
+     */
+    void discard() {
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+        } catch (SQLException e) {
+            log.warn("Failed to drop the staging tables", e);
+        }
+    }
+
+    private static List<String[]> query(Connection conn, String sql, Array names) throws SQLException {
+        List<String[]> rows = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, names);
+            try (ResultSet rs = stmt.executeQuery()) {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    String[] row = new String[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = rs.getString(i + 1);
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static Void execute(DataSource dataSource, List<String> ddl) throws SQLException {
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            for (String sql : ddl) {
+                stmt.execute(sql);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,168 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Makes sure the secondary indexes of {@code DDLs/DDL_indexes.sql} exist when the application starts,
+ * and logs which of them the service queries actually use.
+ * <p>
+ * The schema bootstrap creates the same indexes, this only repairs a database set up without them,
+ * e.g. from the single table DDLs.
+ */
+@Component
+@Slf4j
+public class IndexManager {
+
+    @Autowired
+    private DataSource dataSource;
+
+    /**
+     * @param name  index name
+     * @param table the indexed table, the index is skipped if it does not exist yet
+     * @param ddl   the {@code CREATE INDEX} statement
+     */
+    record ManagedIndex(String name, String table, String ddl) {
+    }
+
+    static final List<ManagedIndex> INDEXES = List.of(
+            new ManagedIndex("likes_bv_mid_uindex", "likes", "create unique index if not exists likes_bv_mid_uindex on likes (bv_liked, mid_liked)"),
+            new ManagedIndex("coins_bv_mid_uindex", "coins", "create unique index if not exists coins_bv_mid_uindex on coins (bv_coin, mid_coin)"),
+            new ManagedIndex("favorites_bv_mid_uindex", "favorites", "create unique index if not exists favorites_bv_mid_uindex on favorites (bv_favorite, mid_favorite)"),
+            new ManagedIndex("likes_mid_index", "likes", "create index if not exists likes_mid_index on likes (mid_liked)"),
+            new ManagedIndex("coins_mid_index", "coins", "create index if not exists coins_mid_index on coins (mid_coin)"),
+            new ManagedIndex("favorites_mid_index", "favorites", "create index if not exists favorites_mid_index on favorites (mid_favorite)"),
+            new ManagedIndex("danmurecord_bv_time_index", "danmurecord", "create index if not exists danmurecord_bv_time_index on DanmuRecord (bv, time)"),
+            new ManagedIndex("danmurecord_mid_index", "danmurecord", "create index if not exists danmurecord_mid_index on DanmuRecord (mid)"),
+            new ManagedIndex("viewrecord_bv_index", "viewrecord", "create index if not exists viewrecord_bv_index on ViewRecord (bv)"),
+            new ManagedIndex("viewrecord_mid_index", "viewrecord", "create index if not exists viewrecord_mid_index on ViewRecord (mid)"),
+            new ManagedIndex("user_follow_followee_index", "user_follow", "create index if not exists user_follow_followee_index on user_follow (followee)"),
+            new ManagedIndex("videorecord_ownermid_title_index", "videorecord", "create index if not exists videorecord_ownermid_title_index on VideoRecord (ownerMid, title)"),
+            new ManagedIndex("videorecord_title_trgm_index", "videorecord", "create index if not exists videorecord_title_trgm_index on VideoRecord using gin (lower(title) gin_trgm_ops) with (fastupdate = off)"),
+            new ManagedIndex("videorecord_description_trgm_index", "videorecord", "create index if not exists videorecord_description_trgm_index on VideoRecord using gin (lower(description) gin_trgm_ops) with (fastupdate = off)"),
+            new ManagedIndex("videorecord_ownername_trgm_index", "videorecord", "create index if not exists videorecord_ownername_trgm_index on VideoRecord using gin (lower(ownerName) gin_trgm_ops) with (fastupdate = off)"),
+            new ManagedIndex("video_stats_score_index", "video_stats", "create index if not exists video_stats_score_index on video_stats (score desc, bv)"),
+            new ManagedIndex("userrecord_qq_index", "userrecord", "create index if not exists userrecord_qq_index on UserRecord (qq)"),
+            new ManagedIndex("userrecord_wechat_index", "userrecord", "create index if not exists userrecord_wechat_index on UserRecord (wechat)"),
+            new ManagedIndex("authinfo_qq_index", "authinfo", "create index if not exists authinfo_qq_index on AuthInfo (qq)"),
+            new ManagedIndex("authinfo_wechat_index", "authinfo", "create index if not exists authinfo_wechat_index on AuthInfo (wechat)")
+    );
+
+    /**
+     * A query issued by a service, explained with sample parameters for the startup report.
+     */
+    private record Probe(String caller, String sql, Object... params) {
+    }
+
+    private static final List<Probe> PROBES = List.of(
+            new Probe("UserImpl.resolve (qq)", "SELECT mid, password, qq, wechat, identity, coin, is_deleted FROM UserRecord WHERE qq = ? LIMIT 2", ""),
+            new Probe("UserImpl.resolve (wechat)", "SELECT mid, password, qq, wechat, identity, coin, is_deleted FROM UserRecord WHERE wechat = ? LIMIT 2", ""),
+            new Probe("UserImpl.getUserInfo", "SELECT ui.coin, ARRAY(SELECT bv_liked FROM likes WHERE mid_liked = ui.mid), "
+                    + "ARRAY(SELECT bv_favorite FROM favorites WHERE mid_favorite = ui.mid), "
+                    + "ARRAY(SELECT bv FROM VideoRecord WHERE ownerMid = ui.mid) FROM UserInfoResp ui WHERE ui.mid = ?", 0L),
+            new Probe("VideoServiceImpl.postVideo", "SELECT COUNT(*) FROM VideoRecord WHERE title = ? AND ownerMid = ?", "", 0L),
+            new Probe("VideoServiceImpl.coinVideo", "SELECT COUNT(*) FROM coins WHERE bv_coin = ? AND mid_coin = ?", "", 0L),
+            new Probe("VideoServiceImpl.likeVideo", "SELECT COUNT(*) FROM likes WHERE bv_liked = ? AND mid_liked = ?", "", 0L),
+            new Probe("VideoServiceImpl.collectVideo", "SELECT COUNT(*) FROM favorites WHERE bv_favorite = ? AND mid_favorite = ?", "", 0L),
+            new Probe("VideoServiceImpl.searchVideo", "SELECT bv FROM VideoRecord WHERE LOWER(title) LIKE LOWER(?) OR LOWER(description) LIKE LOWER(?) OR LOWER(ownerName) LIKE LOWER(?)", "%probe%", "%probe%", "%probe%"),
+            new Probe("VideoServiceImpl.getAverageViewRate", "SELECT v.duration, s.views, s.watch_time FROM VideoRecord v LEFT JOIN video_stats s ON s.bv = v.bv WHERE v.bv = ?", ""),
+            new Probe("DanmuServiceImpl.displayDanmu", "SELECT danmu_id FROM danmurecord WHERE time <= ? AND time >= ? AND bv = ? ORDER BY time", 1f, 0f, ""),
+            new Probe("RecommenderImpl.generalRecommendations", "SELECT bv FROM video_stats ORDER BY score DESC, bv LIMIT ? OFFSET ?", 10, 0),
+            new Probe("RecommenderImpl.recommendNextVideo", "SELECT mid FROM ViewRecord WHERE bv = ?", "")
+    );
+
+    private static final Pattern INDEX_USE = Pattern.compile("(?:Index Scan|Index Only Scan|Bitmap Index Scan)(?: Backward)? (?:using|on) (\\w+)");
+
+    @EventListener
+    public void onApplicationStarted(ApplicationStartedEvent event) {
+        try (Connection conn = dataSource.getConnection()) {
+            ensureIndexes(conn);
+            if (log.isDebugEnabled()) {
+                report(conn);
+            }
+        } catch (SQLException e) {
+            // the service still works without the indexes, only slower
+            log.error("Failed to verify the indexes", e);
+        }
+    }
+
+    /**
+     * Creates the managed indexes that are missing.
+     *
+     * @return the number of created indexes
+     */
+    int ensureIndexes(Connection conn) throws SQLException {
+        int created = 0;
+        try (PreparedStatement exists = conn.prepareStatement("SELECT to_regclass(?) IS NOT NULL");
+             Statement stmt = conn.createStatement()) {
+            try {
+                // the operator class of the trigram indexes
+                stmt.execute("create extension if not exists pg_trgm");
+            } catch (SQLException e) {
+                log.error("Failed to create extension pg_trgm: {}", e.getMessage());
+            }
+            for (ManagedIndex index : INDEXES) {
+                if (!exists(exists, index.table())) {
+                    log.warn("Table {} does not exist, skipped index {}", index.table(), index.name());
+                    continue;
+                }
+                if (exists(exists, index.name())) {
+                    continue;
+                }
+                long start = System.currentTimeMillis();
+                try {
+                    stmt.execute(index.ddl());
+                    created++;
+                    log.info("Created index {} in {} ms", index.name(), System.currentTimeMillis() - start);
+                } catch (SQLException e) {
+                    // e.g. duplicated (bv, mid) rows prevent a unique index, the other indexes are still created
+                    log.error("Failed to create index {}: {}", index.name(), e.getMessage());
+                }
+            }
+        }
+        return created;
+    }
+
+    private static boolean exists(PreparedStatement stmt, String relation) throws SQLException {
+        stmt.setString(1, relation);
+        try (ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getBoolean(1);
+        }
+    }
+
+    /**
+     * Logs the indexes chosen by the planner for every probe, or "seq scan" if none.
+     * On an empty database the planner prefers sequential scans, so the report is only meaningful after an import.
+     */
+    private void report(Connection conn) {
+        for (Probe probe : PROBES) {
+            try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN " + probe.sql())) {
+                for (int i = 0; i < probe.params().length; i++) {
+                    stmt.setObject(i + 1, probe.params()[i]);
+                }
+                Set<String> used = new LinkedHashSet<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        Matcher m = INDEX_USE.matcher(rs.getString(1));
+                        while (m.find()) {
+                            used.add(m.group(1));
+                        }
+                    }
+                }
+                log.debug("{}: {}", probe.caller(), used.isEmpty() ? "seq scan" : String.join(", ", used));
+            } catch (SQLException e) {
+                log.debug("{}: not explained, {}", probe.caller(), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package io.sustc.service.impl;
+
+/**
+ * Map from long to int without boxing, used by {@link SocialGraph} for the dense index of a mid
+ * and for counting common followings.
+ * <p>
+ * Open addressing with linear probing, a slot is free while its value is 0, so values are stored plus one.
+ * Removal shifts the following entries back instead of leaving tombstones.
+ */
+final class LongIntHashMap {
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    LongIntHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(long key, int missing) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i] - 1;
+            }
+        }
+        return missing;
+    }
+
+    void put(long key, int value) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        boolean added = values[i] == 0;
+        keys[i] = key;
+        values[i] = value + 1;
+        if (added && ++size > keys.length / 2) {
+            grow();
+        }
+    }
+
+    /**
+     * Adds the delta to the value of the key, which starts at 0 if absent.
+     */
+    void add(long key, int delta) {
+        put(key, get(key, 0) + delta);
+    }
+
+    void remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == 0) {
+            return;
+        }
+        values[i] = 0;
+        size--;
+        // move back every entry of the run that could not be found across the freed slot any more
+        for (int j = (i + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * Number of slots, iterate them with {@link #used}, {@link #keyAt} and {@link #valueAt}.
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    boolean used(int slot) {
+        return values[slot] != 0;
+    }
+
+    long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    int valueAt(int slot) {
+        return values[slot] - 1;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int k = 0; k < oldKeys.length; k++) {
+            if (oldValues[k] != 0) {
+                int i = slot(oldKeys[k], mask);
+                while (values[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[k];
+                values[i] = oldValues[k];
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        // mids are often multiples of a step, mix the bits so they do not collide on the low ones
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,138 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.sql.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the mids of registered users from blocks leased from the sequence {@code userrecord_mid_seq}.
+ * <p>
+ * The sequence steps by the block size, so every {@code nextval} reserves the block of mids starting at its value
+ * for this JVM, and no other caller or instance can draw them.
+ * Within a block a mid is a single atomic increment, only leasing the next block takes a query.
+ * Mids left in a block when the application stops are skipped, mids need to be unique, not dense.
+ * <p>
+ * Imported users bring their own mids, so an import or truncate has to call {@link #reset(Connection)},
+ * which moves the sequence past the largest mid and drops the current block.
+ */
+@Component
+@Slf4j
+public class MidAllocator {
+
+    /**
+     * @param next the next mid to hand out, may run past {@code end} when the block is used up
+     * @param end  first mid after the block
+     */
+    private record Block(AtomicLong next, long end) {
+    }
+
+    @Autowired
+    private SustcConfig config;
+
+    private volatile Block block;
+
+    // whether the sequence has been created and steps by the configured block size
+    private volatile boolean ready;
+
+    /**
+     * Returns a mid no other caller gets, on the given connection if a new block has to be leased.
+     */
+    public long next(Connection conn) throws SQLException {
+        while (true) {
+            Block current = block;
+            if (current != null) {
+                long mid = current.next().getAndIncrement();
+                if (mid < current.end()) {
+                    return mid;
+                }
+            }
+            synchronized (this) {
+                // another thread may have leased a block meanwhile
+                if (block == current) {
+                    block = lease(conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the given number of mids no other caller gets, for a batch of registrations.
+     * A large batch leases its own blocks in one query, the rest of its last block is skipped.
+     */
+    public long[] next(Connection conn, int count) throws SQLException {
+        long[] mids = new long[count];
+        int size = config.getMidBlockSize();
+        if (count < size) {
+            for (int i = 0; i < count; i++) {
+                mids[i] = next(conn);
+            }
+            return mids;
+        }
+        ensureSequence(conn);
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT nextval('userrecord_mid_seq') FROM generate_series(1, ?)")) {
+            stmt.setInt(1, (count + size - 1) / size);
+            try (ResultSet rs = stmt.executeQuery()) {
+                int i = 0;
+                while (rs.next()) {
+                    long start = rs.getLong(1);
+                    for (int k = 0; k < size && i < count; k++) {
+                        mids[i++] = start + k;
+                    }
+                }
+            }
+        }
+        return mids;
+    }
+
+    private Block lease(Connection conn) throws SQLException {
+        ensureSequence(conn);
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT nextval('userrecord_mid_seq')")) {
+            rs.next();
+            long start = rs.getLong(1);
+            log.debug("Leased mids {} to {}", start, start + config.getMidBlockSize() - 1);
+            return new Block(new AtomicLong(start), start + config.getMidBlockSize());
+        }
+    }
+
+    /**
+     * Moves the sequence past the largest mid of UserRecord and drops the current block,
+     * after users have been written with their own mids.
+     */
+    public synchronized void reset(Connection conn) throws SQLException {
+        ensureSequence(conn);
+        try (Statement stmt = conn.createStatement()) {
+            // not called yet, so the next lease starts right after the largest mid
+            stmt.execute("SELECT setval('userrecord_mid_seq', COALESCE(MAX(mid), 0) + 1, false) FROM UserRecord");
+        }
+        block = null;
+    }
+
+    private void ensureSequence(Connection conn) throws SQLException {
+        if (ready) {
+            return;
+        }
+        synchronized (this) {
+            if (ready) {
+                return;
+            }
+            try (Statement stmt = conn.createStatement()) {
+                boolean created;
+                try (ResultSet rs = stmt.executeQuery("SELECT to_regclass('userrecord_mid_seq') IS NULL")) {
+                    rs.next();
+                    created = rs.getBoolean(1);
+                }
+                stmt.execute("CREATE SEQUENCE IF NOT EXISTS userrecord_mid_seq");
+                // the step is the block size, whatever the sequence was created with
+                stmt.execute("ALTER SEQUENCE userrecord_mid_seq INCREMENT BY " + config.getMidBlockSize());
+                if (created) {
+                    stmt.execute("SELECT setval('userrecord_mid_seq', COALESCE(MAX(mid), 0) + 1, false) FROM UserRecord");
+                }
+            }
+            ready = true;
+        }
+    }
+}
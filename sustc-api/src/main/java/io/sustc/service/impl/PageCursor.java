@@ -0,0 +1,81 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.CursorPage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Continuation tokens of the keyset paginated lists, see {@link io.sustc.dto.CursorPage}.
+ * <p>
+ * A token is the kind of the list followed by the sort key of the last returned entry, joined by newlines
+ * and base64url encoded. None of the keys is a free text that could contain a newline.
+ * The token is opaque to the callers but not signed, a forged one only moves the position in the list.
+ */
+final class PageCursor {
+
+    static final String GENERAL = "general";
+    static final String INTERESTS = "interests";
+    static final String FRIENDS = "friends";
+    static final String SEARCH = "search";
+
+    private PageCursor() {
+    }
+
+    static String encode(String kind, Object... key) {
+        StringBuilder sb = new StringBuilder(kind);
+        for (Object part : key) {
+            sb.append('\n').append(part);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Makes the page of the first {@code pageSize} rows, the query fetches one more row to know whether another page follows.
+     *
+     * @param item  the entry returned for a row
+     * @param token the token continuing after a row
+     */
+    static <T, R> CursorPage<R> page(List<T> rows, int pageSize, Function<T, R> item, Function<T, String> token) {
+        List<R> items = new ArrayList<>();
+        for (int i = 0; i < rows.size() && i < pageSize; i++) {
+            items.add(item.apply(rows.get(i)));
+        }
+        return new CursorPage<>(items, rows.size() > pageSize ? token.apply(rows.get(pageSize - 1)) : null);
+    }
+
+    /**
+     * Returns the kind of the token, or null if it is no token at all.
+     */
+    static String kind(String token) {
+        String[] parts = parts(token);
+        return parts == null ? null : parts[0];
+    }
+
+    /**
+     * Returns the sort key of a token of the given kind, or null if the token is malformed or of another list.
+     */
+    static String[] decode(String token, String kind, int length) {
+        String[] parts = parts(token);
+        if (parts == null || parts.length != length + 1 || !parts[0].equals(kind)) {
+            return null;
+        }
+        String[] key = new String[length];
+        System.arraycopy(parts, 1, key, 0, length);
+        return key;
+    }
+
+    private static String[] parts(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\n", -1);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
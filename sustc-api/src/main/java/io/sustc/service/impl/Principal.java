@@ -0,0 +1,38 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+
+/**
+ * The user an {@link AuthInfo} authenticates as, with everything the services check about the caller,
+ * resolved by {@link UserImpl#resolve} in one query.
+ * <p>
+ * A principal may come from the {@link AuthCache}, so {@code coin} is the balance at the time it was resolved.
+ * The only thing that lowers it is giving a coin, which invalidates the cached principal.
+ *
+ * @param mid      mid of the user, 0 if the auth info is invalid
+ * @param identity USER or SUPERUSER
+ * @param coin     coins the user has left
+ * @param deleted  whether the account is marked as deleted
+ * @param valid    whether the credential matches exactly one user that is not deleted
+ */
+public record Principal(long mid, String password, String qq, String wechat, String identity, int coin,
+                        boolean deleted, boolean valid) {
+
+    static final Principal INVALID = new Principal(0, null, null, null, null, 0, false, false);
+
+    boolean isSuperuser() {
+        return "SUPERUSER".equals(identity);
+    }
+
+    /**
+     * Returns the full auth info of the user, as stored in AuthInfo.
+     */
+    AuthInfo toAuthInfo() {
+        return AuthInfo.builder()
+                .mid(mid)
+                .password(password)
+                .qq(qq)
+                .wechat(wechat)
+                .build();
+    }
+}
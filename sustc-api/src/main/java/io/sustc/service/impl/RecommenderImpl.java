@@ -1,6 +1,7 @@
 package io.sustc.service.impl;
 
 import io.sustc.dto.AuthInfo;
+import io.sustc.dto.CursorPage;
 import io.sustc.service.RecommenderService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,6 +22,19 @@ public class RecommenderImpl implements RecommenderService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private UserImpl userImpl;
+
+    @Autowired
+    private SocialGraph socialGraph;
+
+    // 游标分页里一行的排序键, NULL 的 level 和 publicTime 换成最大值, 和 DESC 时 NULL 排最前一致
+    private record Scored(String bv, double score) {
+    }
+
+    private record Interest(String bv, long friends, int level, String publicTime) {
+    }
+
     @Override
     public List<String> recommendNextVideo(String bv) {
         String sqlExist = "SELECT COUNT(*) FROM ViewRecord WHERE bv = ?";
@@ -62,62 +76,13 @@ public class RecommenderImpl implements RecommenderService {
         // pageSize and pageNum are parameters used for pagination.
         // The purpose of these two parameters is to allow clients to fetch large data sets in batches
         if (pageSize > 0 && pageNum > 0) {
+            // the score is a generated column of the counters in video_stats, ties keep a stable page order
             String sql = """
-                        WITH view AS(
-                        SELECT video.bv, COUNT(vr.mid) AS count\s
-                        FROM VideoRecord video\s
-                        LEFT JOIN ViewRecord vr ON video.bv = vr.bv\s
-                        GROUP BY video.bv
-                    ),\s
-                    like_num AS(
-                        SELECT video.bv, COUNT(*) AS count\s
-                        FROM VideoRecord video\s
-                        LEFT JOIN likes l ON l.bv_liked = video.bv\s
-                        GROUP BY video.bv
-                    ),\s
-                    coin_num AS(
-                        SELECT video.bv, COUNT(*) AS count\s
-                        FROM VideoRecord video\s
-                        LEFT JOIN coins c ON c.bv_coin = video.bv\s
-                        GROUP BY video.bv
-                    ),\s
-                    favourite_num AS(
-                        SELECT video.bv, COUNT(*) AS count\s
-                        FROM VideoRecord video\s
-                        LEFT JOIN favorites f ON f.bv_favorite = video.bv\s
-                        GROUP BY video.bv
-                    ),\s
-                    danmu_num AS(
-                        SELECT video.bv, COUNT(*) AS count\s
-                        FROM VideoRecord video\s
-                        LEFT JOIN DanmuRecord DR on video.bv = DR.bv\s
-                        GROUP BY video.bv
-                    ),\s
-                    finish_avg AS (
-                        SELECT bv, AVG(timestamp) AS avg_finish\s
-                        FROM ViewRecord\s
-                        GROUP BY bv
-                    ),\s
-                    finish_percent AS (
-                        SELECT VideoRecord.bv, COALESCE(finish_avg.avg_finish, 0)::float / NULLIF(duration, 0) AS percent_finish\s
-                        FROM VideoRecord\s
-                        LEFT JOIN finish_avg ON VideoRecord.bv = finish_avg.bv
-                    ),\s
-                    grade AS(
-                        SELECT view.bv,\s
-                        (SELECT COALESCE(like_num.count, 0)::float / NULLIF(view.count, 0) FROM like_num WHERE like_num.bv = view.bv) AS like_ratio,\s
-                        (SELECT COALESCE(coin_num.count, 0)::float / NULLIF(view.count, 0) FROM coin_num WHERE coin_num.bv = view.bv) AS coin_ratio,\s
-                        (SELECT COALESCE(favourite_num.count, 0)::float / NULLIF(view.count, 0) FROM favourite_num WHERE favourite_num.bv = view.bv) AS favourite_ratio,\s
-                        (SELECT COALESCE(danmu_num.count, 0)::float / NULLIF(view.count, 0) FROM danmu_num WHERE danmu_num.bv = view.bv) AS danmu_ratio,\s
-                        (SELECT COALESCE(finish_percent.percent_finish, 0) FROM finish_percent WHERE finish_percent.bv = view.bv) AS avg_finish\s
-                        FROM view
-                    )\s
-                    SELECT bv, like_ratio+coin_ratio+favourite_ratio+danmu_ratio+avg_finish AS final\s
-                    FROM grade\s
-                    ORDER BY final DESC\s
-                    LIMIT ? OFFSET ?;
-
-                                               """;
+                    SELECT bv
+                    FROM video_stats
+                    ORDER BY score DESC, bv
+                    LIMIT ? OFFSET ?
+                    """;
             try (Connection conn = dataSource.getConnection();
                  PreparedStatement stmt = conn.prepareStatement(sql)) {
                 // pageSize represents the number of data entries per page, which is the size of the result set returned for each query.
@@ -141,22 +106,93 @@ public class RecommenderImpl implements RecommenderService {
     }
 
 
+    @Override
+    public CursorPage<String> generalRecommendations(int pageSize, String cursor) {
+        if (pageSize <= 0) {
+            return null;
+        }
+        Scored after = null;
+        if (cursor != null) {
+            String[] key = PageCursor.decode(cursor, PageCursor.GENERAL, 2);
+            if (key == null) {
+                return null;
+            }
+            try {
+                after = new Scored(key[1], Double.parseDouble(key[0]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            return general(conn, pageSize, after);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The videos after {@code after} in the order of video_stats_score_index.
+     * The rest of the tie of the last video and the lower scores are two range scans of the index,
+     * all the videos nobody watched share the score 0 and a single scan would filter through them.
+     */
+    private CursorPage<String> general(Connection conn, int pageSize, Scored after) throws SQLException {
+        String sql = after == null ? """
+                SELECT bv, score
+                FROM video_stats
+                ORDER BY score DESC, bv
+                LIMIT ?
+                """ : """
+                SELECT bv, score
+                FROM ((SELECT bv, score
+                       FROM video_stats
+                       WHERE score = ?
+                         AND bv > ?
+                       ORDER BY score DESC, bv
+                       LIMIT ?)
+                      UNION ALL
+                      (SELECT bv, score
+                       FROM video_stats
+                       WHERE score < ?
+                       ORDER BY score DESC, bv
+                       LIMIT ?)) AS rest
+                ORDER BY score DESC, bv
+                LIMIT ?
+                """;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int paramIndex = 1;
+            if (after != null) {
+                stmt.setDouble(paramIndex++, after.score());
+                stmt.setString(paramIndex++, after.bv());
+                stmt.setInt(paramIndex++, pageSize + 1);
+                stmt.setDouble(paramIndex++, after.score());
+                stmt.setInt(paramIndex++, pageSize + 1);
+            }
+            stmt.setInt(paramIndex, pageSize + 1);
+            List<Scored> rows = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(new Scored(rs.getString(1), rs.getDouble(2)));
+                }
+            }
+            return PageCursor.page(rows, pageSize, Scored::bv,
+                    last -> PageCursor.encode(PageCursor.GENERAL, last.score(), last.bv()));
+        }
+    }
+
     @Override
     public List<String> recommendVideosForUser(AuthInfo auth, int pageSize, int pageNum) {
-        UserImpl userimpl = new UserImpl();
         List<String> recommendedVideos = new ArrayList<>();
         try (Connection conn = dataSource.getConnection()) {
-            if (userimpl.isValidAuth(auth, conn) && pageSize > 0 && pageNum > 0) {
-                auth = construct_full_authinfo(auth, conn);
+            Principal principal = userImpl.resolve(auth, conn);
+            if (principal.valid() && pageSize > 0 && pageNum > 0) {
+                auth = principal.toAuthInfo();
+                long[] friends = friendsOf(auth.getMid(), conn);
+                if (friends.length == 0) {
+                    return generalRecommendations(pageSize, pageNum);
+                }
                 String sql = """
                               WITH friends AS (
-                            SELECT UNNEST(following) AS mid
-                            FROM UserInfoResp
-                            WHERE mid = ?
-                            INTERSECT
-                            SELECT UNNEST(follower)
-                            FROM UserInfoResp
-                            WHERE mid = ?
+                            SELECT unnest(?::bigint[]) AS mid
                         ),
                         already AS (
                             SELECT bv
@@ -175,18 +211,17 @@ public class RecommenderImpl implements RecommenderService {
                         FROM counted_videos cv
                         LEFT JOIN VideoRecord vr ON vr.bv = cv.bv
                         LEFT JOIN UserRecord ur ON ur.mid = vr.ownerMid
-                        ORDER BY cv.c DESC, ur.level DESC, vr.publictime DESC
+                        ORDER BY cv.c DESC, ur.level DESC, vr.publictime DESC, cv.bv
                                         
                                LIMIT ? OFFSET ?;
                                     
                               """;
                 try (PreparedStatement stmt = conn.prepareStatement(sql)) {
                     // 对于friends中取出的每一个元素 在数据库中搜寻这些mid对应的view表中的所有行，并将它们按照BV分类计算每一类的数目
-                    stmt.setLong(1, auth.getMid()); // User's own mid
-                    stmt.setLong(2, auth.getMid());
-                    stmt.setLong(3, auth.getMid());
-                    stmt.setInt(4, pageSize);
-                    stmt.setInt(5, (pageNum - 1) * pageSize);
+                    stmt.setArray(1, conn.createArrayOf("bigint", Arrays.stream(friends).boxed().toArray()));
+                    stmt.setLong(2, auth.getMid()); // User's own mid
+                    stmt.setInt(3, pageSize);
+                    stmt.setInt(4, (pageNum - 1) * pageSize);
 
                     // Execute the query and retrieve the results
                     try (ResultSet rs = stmt.executeQuery()) {
@@ -209,6 +244,105 @@ public class RecommenderImpl implements RecommenderService {
         return recommendedVideos;
     }
 
+    @Override
+    public CursorPage<String> recommendVideosForUser(AuthInfo auth, int pageSize, String cursor) {
+        if (auth == null || pageSize <= 0) {
+            return null;
+        }
+        // 兴趣为空时翻的是 generalRecommendations 的页, 游标记着是哪一种
+        String kind = PageCursor.kind(cursor);
+        Interest after = null;
+        Scored general = null;
+        if (cursor != null) {
+            try {
+                if (PageCursor.INTERESTS.equals(kind)) {
+                    String[] key = PageCursor.decode(cursor, PageCursor.INTERESTS, 4);
+                    if (key == null) {
+                        return null;
+                    }
+                    after = new Interest(key[3], Long.parseLong(key[0]), Integer.parseInt(key[1]), key[2]);
+                } else {
+                    String[] key = PageCursor.decode(cursor, PageCursor.GENERAL, 2);
+                    if (key == null) {
+                        return null;
+                    }
+                    general = new Scored(key[1], Double.parseDouble(key[0]));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
+                return null;
+            }
+            if (general != null) {
+                return general(conn, pageSize, general);
+            }
+            long mid = principal.mid();
+            long[] friends = friendsOf(mid, conn);
+            if (friends.length == 0) {
+                return after == null ? general(conn, pageSize, null) : new CursorPage<>(new ArrayList<>(), null);
+            }
+            StringBuilder sql = new StringBuilder("""
+                    WITH friends AS (SELECT unnest(?::bigint[]) AS mid),
+                         already AS (SELECT bv FROM ViewRecord WHERE mid = ?),
+                         counted_videos AS (SELECT vr.bv, COUNT(vr.mid) AS c
+                                            FROM ViewRecord vr
+                                                     JOIN friends f ON vr.mid = f.mid
+                                                     LEFT JOIN already a ON vr.bv = a.bv
+                                            WHERE a.bv IS NULL
+                                            GROUP BY vr.bv),
+                         ranked AS (SELECT cv.bv,
+                                           cv.c,
+                                           COALESCE(ur.level, 2147483647)           AS level,
+                                           COALESCE(vr.publictime, 'infinity'::timestamp) AS publictime
+                                    FROM counted_videos cv
+                                             LEFT JOIN VideoRecord vr ON vr.bv = cv.bv
+                                             LEFT JOIN UserRecord ur ON ur.mid = vr.ownerMid)
+                    SELECT bv, c, level, publictime::text
+                    FROM ranked
+                    """);
+            if (after != null) {
+                sql.append("""
+                        WHERE (c, level, publictime) < (?, ?, ?::timestamp)
+                           OR (c, level, publictime) = (?, ?, ?::timestamp) AND bv > ?
+                        """);
+            }
+            sql.append("""
+                    ORDER BY c DESC, level DESC, publictime DESC, bv
+                    LIMIT ?""");
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                int paramIndex = 1;
+                stmt.setArray(paramIndex++, conn.createArrayOf("bigint", Arrays.stream(friends).boxed().toArray()));
+                stmt.setLong(paramIndex++, mid);
+                if (after != null) {
+                    for (int i = 0; i < 2; i++) {
+                        stmt.setLong(paramIndex++, after.friends());
+                        stmt.setInt(paramIndex++, after.level());
+                        stmt.setString(paramIndex++, after.publicTime());
+                    }
+                    stmt.setString(paramIndex++, after.bv());
+                }
+                stmt.setInt(paramIndex, pageSize + 1);
+                List<Interest> rows = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new Interest(rs.getString(1), rs.getLong(2), rs.getInt(3), rs.getString(4)));
+                    }
+                }
+                if (rows.isEmpty() && after == null) {
+                    return general(conn, pageSize, null);
+                }
+                return PageCursor.page(rows, pageSize, Interest::bv,
+                        last -> PageCursor.encode(PageCursor.INTERESTS, last.friends(), last.level(), last.publicTime(), last.bv()));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
 //    private List<Long> findFriends(AuthInfo auth) {
 //        List<Long> friends = new ArrayList<>();
 //        String sql = """
@@ -247,26 +381,31 @@ public class RecommenderImpl implements RecommenderService {
             return null;
         }
 
-        UserImpl userImpl = new UserImpl();
         try (Connection conn = dataSource.getConnection()) {
-            if (!userImpl.isValidAuth(auth, conn)) {
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
                 return Collections.emptyList();
-            } else {
-                auth = construct_full_authinfo(auth, conn);
+            }
+            auth = principal.toAuthInfo();
+            if (socialGraph.isLoaded()) {
+                // 从内存中的关注关系计算共同关注
+                List<Long> recommendedFriends = new ArrayList<>();
+                for (long mid : socialGraph.suggestFriends(auth.getMid(), (pageNum - 1) * pageSize, pageSize)) {
+                    recommendedFriends.add(mid);
+                }
+                return recommendedFriends;
             }
             // 构建 SQL 查询
             String sql = """
                          
-                    SELECT ui.mid, COUNT(*) AS common_followings_count, ur.level
-                         FROM UserInfoResp ui
-                                  JOIN UserRecord ur ON ui.mid = ur.mid
-                                  CROSS JOIN LATERAL UNNEST(ui.following) AS f(mid)
-                                  JOIN (SELECT UNNEST(following) AS followed_mid
-                                        FROM UserInfoResp
-                                        WHERE mid = ?) AS common_following ON f.mid = common_following.followed_mid
-                         WHERE ui.mid <> ?
-                         GROUP BY ui.mid, ur.level,ur.mid
-                         ORDER BY common_followings_count DESC, ur.level DESC,ur.mid
+                    SELECT other.follower AS mid, COUNT(*) AS common_followings_count, ur.level
+                         FROM user_follow mine
+                                  JOIN user_follow other ON other.followee = mine.followee
+                                  JOIN UserRecord ur ON other.follower = ur.mid
+                         WHERE mine.follower = ?
+                           AND other.follower <> ?
+                         GROUP BY other.follower, ur.level
+                         ORDER BY common_followings_count DESC, ur.level DESC, other.follower
                          limit ? offset ?;
                            """;
 
@@ -293,64 +432,94 @@ public class RecommenderImpl implements RecommenderService {
         }
     }
 
-    // Helper method to get the current user's followings
-    private List<Long> getFollowings(AuthInfo auth, Connection conn) throws SQLException {
-        String sql = "SELECT following FROM UserRecord WHERE mid = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setLong(1, auth.getMid());
-            try (ResultSet rs = stmt.executeQuery()) {
-                List<Long> followings = new ArrayList<>();
-                if (rs.next()) {
-                    Array followingArray = rs.getArray("following");
-                    Long[] followingArrayData = (Long[]) followingArray.getArray();
-                    followings = Arrays.asList(followingArrayData);
-                }
-                return followings;
+    @Override
+    public CursorPage<Long> recommendFriends(AuthInfo auth, int pageSize, String cursor) {
+        if (auth == null || pageSize <= 0) {
+            return null;
+        }
+        SocialGraph.Suggestion after = null;
+        if (cursor != null) {
+            String[] key = PageCursor.decode(cursor, PageCursor.FRIENDS, 3);
+            if (key == null) {
+                return null;
+            }
+            try {
+                after = new SocialGraph.Suggestion(Long.parseLong(key[2]), Integer.parseInt(key[0]), Integer.parseInt(key[1]));
+            } catch (NumberFormatException e) {
+                return null;
             }
         }
-    }
-
-    public AuthInfo construct_full_authinfo(AuthInfo authInfo, Connection conn) {
-        String sql;
-        PreparedStatement stmt;
-        ResultSet rs;
-
-        try {
-            // Determine the query based on provided info
-            if (authInfo.getQq() != null) {
-                sql = "SELECT * FROM authinfo WHERE qq = ?";
-                stmt = conn.prepareStatement(sql);
-                stmt.setString(1, authInfo.getQq());
-            } else if (authInfo.getWechat() != null) {
-                sql = "SELECT * FROM authinfo WHERE wechat = ?";
-                stmt = conn.prepareStatement(sql);
-                stmt.setString(1, authInfo.getWechat());
-            } else if (authInfo.getMid() != 0) {
-                sql = "SELECT * FROM authinfo WHERE mid = ?";
-                stmt = conn.prepareStatement(sql);
-                stmt.setLong(1, authInfo.getMid());
-            } else {
-                // Handle case where no identifying information is provided
-                return null; // or throw an exception
+        try (Connection conn = dataSource.getConnection()) {
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
+                return null;
             }
-
-            // Execute the query
-            rs = stmt.executeQuery();
-            if (rs.next()) {
-                // Construct a new AuthInfo object from the ResultSet
-                return AuthInfo.builder()
-                        .mid(rs.getLong("mid"))
-                        .password(rs.getString("password"))
-                        .qq(rs.getString("qq"))
-                        .wechat(rs.getString("wechat"))
-                        .build();
+            long mid = principal.mid();
+            List<SocialGraph.Suggestion> rows;
+            if (socialGraph.isLoaded()) {
+                rows = socialGraph.suggestFriends(mid, after, pageSize + 1);
             } else {
-                return null; // or handle case where no record is found
+                // (共同关注数, level, -mid) 都是降序, 可以整行比较
+                String sql = """
+                        SELECT other.follower AS mid, COUNT(*) AS common, COALESCE(ur.level, 2147483647) AS level
+                        FROM user_follow mine
+                                 JOIN user_follow other ON other.followee = mine.followee
+                                 JOIN UserRecord ur ON other.follower = ur.mid
+                        WHERE mine.follower = ?
+                          AND other.follower <> ?
+                        GROUP BY other.follower, ur.level
+                        """ + (after == null ? "" : """
+                        HAVING (COUNT(*), COALESCE(ur.level, 2147483647), -other.follower) < (?, ?, ?)
+                        """) + """
+                        ORDER BY common DESC, level DESC, mid
+                        LIMIT ?""";
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    int paramIndex = 1;
+                    stmt.setLong(paramIndex++, mid);
+                    stmt.setLong(paramIndex++, mid);
+                    if (after != null) {
+                        stmt.setLong(paramIndex++, after.common());
+                        stmt.setInt(paramIndex++, after.level());
+                        stmt.setLong(paramIndex++, -after.mid());
+                    }
+                    stmt.setInt(paramIndex, pageSize + 1);
+                    rows = new ArrayList<>();
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            rows.add(new SocialGraph.Suggestion(rs.getLong(1), rs.getInt(2), rs.getInt(3)));
+                        }
+                    }
+                }
             }
+            return PageCursor.page(rows, pageSize, SocialGraph.Suggestion::mid,
+                    last -> PageCursor.encode(PageCursor.FRIENDS, last.common(), last.level(), last.mid()));
         } catch (SQLException e) {
-            // Handle SQL exception
-            e.printStackTrace();
-            return null;
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the mids the user follows and that follow it back, from the social graph once it is loaded.
+     */
+    private long[] friendsOf(long mid, Connection conn) throws SQLException {
+        if (socialGraph.isLoaded()) {
+            return socialGraph.friends(mid);
+        }
+        String sql = """
+                SELECT followee FROM user_follow WHERE follower = ?
+                INTERSECT
+                SELECT follower FROM user_follow WHERE followee = ?
+                """;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, mid);
+            stmt.setLong(2, mid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                List<Long> friends = new ArrayList<>();
+                while (rs.next()) {
+                    friends.add(rs.getLong(1));
+                }
+                return friends.stream().mapToLong(Long::longValue).toArray();
+            }
         }
     }
 
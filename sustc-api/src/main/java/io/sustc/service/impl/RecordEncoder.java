@@ -0,0 +1,176 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Arrays;
+
+/**
+ * Encodes the records of an import into the COPY rows of their tables.
+ * <p>
+ * Every method writes primitive fields and arrays straight into the {@link CopyWriter},
+ * nothing is boxed and no intermediate strings are built, since this runs once per record of the import.
+ */
+final class RecordEncoder {
+
+    // birthdays only carry month and day
+    private static final int DEFAULT_YEAR = 2000;
+
+    private RecordEncoder() {
+    }
+
+    static void user(UserRecord user, CopyWriter out) {
+        out.field(user.getMid())
+                .field(user.getName())
+                .field(user.getSex());
+        birthday(user.getBirthday(), out);
+        out.field(user.getLevel())
+                .field(user.getSign())
+                .field(user.getFollowing())
+                .field(user.getIdentity() == null ? null : user.getIdentity().toString())
+                .field(user.getPassword())
+                .field(user.getQq())
+                .field(user.getWechat())
+                .field(user.getCoin())
+                .endRow();
+    }
+
+    /**
+     * Writes one (follower, followee) row of user_follow for each distinct mid the user follows.
+     */
+    static void follows(UserRecord user, CopyWriter out) {
+        long[] following = user.getFollowing();
+        if (following == null || following.length == 0) {
+            return;
+        }
+        // the edge table has a primary key, a mid listed twice must only be written once
+        long[] sorted = following.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                out.field(user.getMid()).field(sorted[i]).endRow();
+            }
+        }
+    }
+
+    /**
+     * Writes the birthday of a user record ("X月X日" or "X-X", one or two digits each) as a date in the default year,
+     * or null if it is empty, in neither format, or no month and day of a month.
+     * A day past the end of its month rolls over into the next month, the way the import always parsed it.
+     */
+    static void birthday(String birthday, CopyWriter out) {
+        int n = birthday == null ? 0 : birthday.length();
+        int i = 0;
+        int month = 0;
+        int monthDigits = 0;
+        while (i < n && monthDigits < 2 && isDigit(birthday.charAt(i))) {
+            month = month * 10 + birthday.charAt(i++) - '0';
+            monthDigits++;
+        }
+        if (monthDigits == 0 || i == n) {
+            out.nul();
+            return;
+        }
+        char separator = birthday.charAt(i++);
+        if (separator != '月' && separator != '-') {
+            out.nul();
+            return;
+        }
+        int day = 0;
+        int dayDigits = 0;
+        while (i < n && dayDigits < 2 && isDigit(birthday.charAt(i))) {
+            day = day * 10 + birthday.charAt(i++) - '0';
+            dayDigits++;
+        }
+        // "X月X日" must end with 日, "X-X" must end right after the day
+        if (separator == '月' && i < n && birthday.charAt(i) == '日') {
+            i++;
+        } else if (separator == '月') {
+            dayDigits = 0;
+        }
+        if (dayDigits == 0 || i != n || month < 1 || month > 12 || day < 1 || day > 31) {
+            out.nul();
+            return;
+        }
+        // an invalid date would abort the whole COPY
+        if (day > YearMonth.of(DEFAULT_YEAR, month).lengthOfMonth()) {
+            LocalDate date = LocalDate.of(DEFAULT_YEAR, month, 1).plusDays(day - 1);
+            out.date(date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+            return;
+        }
+        out.date(DEFAULT_YEAR, month, day);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    static void video(VideoRecord video, CopyWriter out) {
+        out.field(video.getBv())
+                .field(video.getTitle())
+                .field(video.getOwnerMid())
+                .field(video.getOwnerName())
+                .field(video.getCommitTime())
+                .field(video.getReviewTime())
+                .field(video.getPublicTime())
+                // duration is an INT column, round the same way as the server casts a float
+                .field((long) Math.rint(video.getDuration()))
+                .field(video.getDescription());
+        if (video.getReviewer() != null) {
+            out.field(video.getReviewer().longValue());
+        } else {
+            out.nul();
+        }
+        out.endRow();
+    }
+
+    static void views(VideoRecord video, CopyWriter out) {
+        long[] view = video.getViewerMids();
+        if (view == null) {
+            return;
+        }
+        float[] viewTime = video.getViewTime();
+        for (int i = 0; i < view.length; i++) {
+            out.field(video.getBv()).field(view[i]).field(viewTime[i]).endRow();
+        }
+    }
+
+    static void likes(VideoRecord video, CopyWriter out) {
+        pairs(video.getBv(), video.getLike(), out);
+    }
+
+    static void coins(VideoRecord video, CopyWriter out) {
+        pairs(video.getBv(), video.getCoin(), out);
+    }
+
+    static void favorites(VideoRecord video, CopyWriter out) {
+        pairs(video.getBv(), video.getFavorite(), out);
+    }
+
+    // writes one (bv, mid) row of likes, coins or favorites for each distinct mid, the tables are unique on (bv, mid)
+    private static void pairs(String bv, long[] mids, CopyWriter out) {
+        if (mids == null || mids.length == 0) {
+            return;
+        }
+        long[] sorted = mids.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                out.field(bv).field(sorted[i]).endRow();
+            }
+        }
+    }
+
+    static void danmu(DanmuRecord danmu, CopyWriter out) {
+        out.field(danmu.getBv())
+                .field(danmu.getMid())
+                .field(danmu.getTime())
+                .field(danmu.getContent())
+                .field(danmu.getPostTime())
+                .field(danmu.getLikedBy())
+                .endRow();
+    }
+}
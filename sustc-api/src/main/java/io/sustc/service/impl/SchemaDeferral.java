@@ -0,0 +1,275 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Drops the foreign keys and secondary indexes of the import tables before a bulk load,
+ * and recreates them afterwards.
+ * <p>
+ * The dropped definitions are recorded in {@link #TABLE} in the same transaction that drops them,
+ * so the exact schema can still be restored by {@link #restore(DataSource, int)} if an import fails halfway
+ * or the JVM dies. Restoring is resumable: every recreated object removes its own row.
+ * <ol>
+ *   <li>indexes are rebuilt in parallel, one connection each</li>
+ *   <li>foreign keys are added as {@code NOT VALID}, which takes only a short lock</li>
+ *   <li>foreign keys are validated with one set-based scan each, in parallel across tables</li>
+ * </ol>
+ * Primary keys and indexes backing a constraint are kept, since foreign keys depend on them.
+ */
+@Slf4j
+class SchemaDeferral {
+
+    static final String TABLE = "import_deferred_ddl";
+
+    private static final String KIND_INDEX = "index";
+
+    private static final String KIND_FK = "fk";
+
+    // a foreign key that has been added as NOT VALID but not validated yet
+    private static final String KIND_VALIDATE = "validate";
+
+    private SchemaDeferral() {
+    }
+
+    private static void createTable(Connection conn) throws SQLException {
+        String sql = """
+                CREATE TABLE IF NOT EXISTS import_deferred_ddl
+                (
+                    id         serial primary key,
+                    kind       varchar(16),  -- index, fk or validate
+                    table_name varchar(255), -- the table the object belongs to
+                    name       varchar(255), -- index or constraint name
+                    definition text          -- CREATE INDEX statement or constraint definition
+                );
+                """;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    // the table is only created by the first deferring import, reading it must not create it
+    private static boolean tableExists(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT to_regclass('import_deferred_ddl') IS NOT NULL")) {
+            rs.next();
+            return rs.getBoolean(1);
+        }
+    }
+
+    /**
+     * Records and drops the foreign keys and secondary indexes of the tables in one transaction.
+     *
+     * @param tables lower case names of the tables in the public schema
+     * @return the number of dropped objects
+     */
+    static int defer(Connection conn, Collection<String> tables) throws SQLException {
+        String sql_fk = """
+                SELECT c.conrelid::regclass::text, c.conname, pg_get_constraintdef(c.oid)
+                FROM pg_constraint c
+                         JOIN pg_class t ON t.oid = c.conrelid
+                WHERE c.contype = 'f'
+                  AND c.connamespace = 'public'::regnamespace
+                  AND t.relname = ANY (?);
+                """;
+        String sql_index = """
+                SELECT i.tablename, i.indexname, i.indexdef
+                FROM pg_indexes i
+                WHERE i.schemaname = 'public'
+                  AND i.tablename = ANY (?)
+                  AND NOT EXISTS (SELECT 1
+                                  FROM pg_constraint c
+                                  WHERE c.conindid = (quote_ident(i.schemaname) || '.' || quote_ident(i.indexname))::regclass);
+                """;
+        String sql_record = "INSERT INTO import_deferred_ddl (kind, table_name, name, definition) VALUES (?, ?, ?, ?)";
+
+        boolean autoCommit = conn.getAutoCommit();
+        createTable(conn);
+        conn.setAutoCommit(false);
+        try (PreparedStatement fk = conn.prepareStatement(sql_fk);
+             PreparedStatement index = conn.prepareStatement(sql_index);
+             PreparedStatement record = conn.prepareStatement(sql_record);
+             Statement drop = conn.createStatement()) {
+            Array names = conn.createArrayOf("varchar", tables.toArray());
+            List<String> drops = new ArrayList<>();
+
+            fk.setArray(1, names);
+            try (ResultSet rs = fk.executeQuery()) {
+                while (rs.next()) {
+                    addRecord(record, KIND_FK, rs.getString(1), rs.getString(2), rs.getString(3));
+                    drops.add("ALTER TABLE " + rs.getString(1) + " DROP CONSTRAINT " + quote(rs.getString(2)));
+                }
+            }
+            index.setArray(1, names);
+            try (ResultSet rs = index.executeQuery()) {
+                while (rs.next()) {
+                    addRecord(record, KIND_INDEX, rs.getString(1), rs.getString(2), rs.getString(3));
+                    drops.add("DROP INDEX " + quote(rs.getString(2)));
+                }
+            }
+            record.executeBatch();
+            for (String sql : drops) {
+                drop.addBatch(sql);
+            }
+            drop.executeBatch();
+            conn.commit();
+            log.debug("Deferred {} foreign keys and indexes", drops.size());
+            return drops.size();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void addRecord(PreparedStatement record, String kind, String table, String name, String definition) throws SQLException {
+        record.setString(1, kind);
+        record.setString(2, table);
+        record.setString(3, name);
+        record.setString(4, definition);
+        record.addBatch();
+    }
+
+    static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    private record Deferred(int id, String kind, String table, String name, String definition) {
+    }
+
+    private static List<Deferred> pending(Connection conn) throws SQLException {
+        List<Deferred> deferred = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT id, kind, table_name, name, definition FROM import_deferred_ddl ORDER BY id")) {
+            while (rs.next()) {
+                deferred.add(new Deferred(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5)));
+            }
+        }
+        return deferred;
+    }
+
+    /**
+     * Returns whether objects dropped by {@link #defer(Connection, Collection)} are still waiting to be restored.
+     */
+    static boolean hasPending(Connection conn) throws SQLException {
+        return tableExists(conn) && !pending(conn).isEmpty();
+    }
+
+    /**
+     * Recreates everything recorded by {@link #defer(Connection, Collection)}, including leftovers of earlier runs.
+     *
+     * @param parallelism the number of connections used at the same time
+     * @return the number of restored objects
+     */
+    static int restore(DataSource dataSource, int parallelism) throws SQLException {
+        List<Deferred> deferred;
+        try (Connection conn = dataSource.getConnection()) {
+            if (!tableExists(conn)) {
+                return 0;
+            }
+            deferred = pending(conn);
+        }
+        if (deferred.isEmpty()) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            // 1. rebuild the indexes in parallel
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (Deferred d : deferred) {
+                if (d.kind().equals(KIND_INDEX)) {
+                    tasks.add(() -> apply(dataSource, d, d.definition(), null));
+                }
+            }
+            runAll(executor, tasks);
+
+            // 2. add the foreign keys without checking the existing rows
+            try (Connection conn = dataSource.getConnection()) {
+                for (Deferred d : deferred) {
+                    if (d.kind().equals(KIND_FK)) {
+                        String sql = "ALTER TABLE " + d.table() + " ADD CONSTRAINT " + quote(d.name()) + " " + d.definition() + " NOT VALID";
+                        applyOn(conn, d, sql, KIND_VALIDATE);
+                    }
+                }
+            }
+
+            // 3. validate them, one table per connection since validations of the same table conflict
+            Map<String, List<Deferred>> byTable = new LinkedHashMap<>();
+            for (Deferred d : deferred) {
+                if (!d.kind().equals(KIND_INDEX)) {
+                    byTable.computeIfAbsent(d.table(), k -> new ArrayList<>()).add(d);
+                }
+            }
+            tasks.clear();
+            for (List<Deferred> group : byTable.values()) {
+                tasks.add(() -> {
+                    for (Deferred d : group) {
+                        apply(dataSource, d, "ALTER TABLE " + d.table() + " VALIDATE CONSTRAINT " + quote(d.name()), null);
+                    }
+                    return null;
+                });
+            }
+            runAll(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        log.debug("Restored {} foreign keys and indexes in {} ms", deferred.size(), System.currentTimeMillis() - start);
+        return deferred.size();
+    }
+
+    private static Void apply(DataSource dataSource, Deferred d, String sql, String nextKind) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            applyOn(conn, d, sql, nextKind);
+        }
+        return null;
+    }
+
+    /**
+     * Executes the DDL and, in the same transaction, removes the record or moves it to {@code nextKind}.
+     */
+    private static void applyOn(Connection conn, Deferred d, String sql, String nextKind) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement();
+             PreparedStatement record = conn.prepareStatement(nextKind == null
+                     ? "DELETE FROM import_deferred_ddl WHERE id = ?"
+                     : "UPDATE import_deferred_ddl SET kind = ? WHERE id = ?")) {
+            stmt.execute(sql);
+            if (nextKind == null) {
+                record.setInt(1, d.id());
+            } else {
+                record.setString(1, nextKind);
+                record.setInt(2, d.id());
+            }
+            record.executeUpdate();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    static void runAll(ExecutorService executor, List<Callable<Void>> tasks) throws SQLException {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException cause) {
+                throw cause;
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache of the complete ranked result of {@link VideoServiceImpl#searchVideo} by normalized keywords,
+ * every page of a repeated search is sliced from it.
+ * <p>
+ * The keywords are normalized to their sorted list with ASCII letters lowercased: the order of the keywords does not
+ * change the relevance, and the search lowercases at least ASCII whatever the collation. Duplicates are kept, each one
+ * counts towards the relevance.
+ * <p>
+ * The results depend on the videos and their view counts. Every change of them bumps the catalog version, which
+ * drops all entries: postVideo, updateVideoInfo, deleteVideo, deleteAccount, imports and truncates.
+ * Entries are kept in access order and the least recently read are evicted once their estimated size exceeds
+ * {@code sustc.search-cache-bytes}. A ranking longer than {@link #capacity} is not loaded at all, only the key is
+ * remembered until the next bump and the pages are queried one by one.
+ */
+@Component
+@Slf4j
+public class SearchResultCache {
+
+    /**
+     * @param hits      searches answered from the cache
+     * @param misses    searches that were ranked again or are too long to be cached
+     * @param evictions entries dropped to stay within the size bound
+     * @param version   the catalog version, bumped by every change of the videos or their views
+     * @param size      entries currently cached
+     * @param bytes     estimated heap of the cached entries
+     */
+    public record Stats(long hits, long misses, long evictions, long version, int size, long bytes) {
+
+        public double hitRatio() {
+            long reads = hits + misses;
+            return reads == 0 ? 0 : (double) hits / reads;
+        }
+    }
+
+    // ranked is null if the ranking is too long to be cached
+    private record Entry(List<VideoSearchIndex.Hit> ranked, long bytes) {
+    }
+
+    private static final long HIT_BYTES = 96;
+
+    @Autowired
+    private SustcConfig config;
+
+    // access order, the first entry is the least recently read
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private long bytes;
+
+    // a ranking loaded before a bump must not be put
+    private long version;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    boolean isEnabled() {
+        return config.getSearchCacheBytes() > 0;
+    }
+
+    static String key(String keywords) {
+        String[] words = keywords.split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            words[i] = asciiLower(words[i]);
+        }
+        Arrays.sort(words);
+        return String.join(" ", words);
+    }
+
+    /**
+     * Returns the most hits a ranking cached under the key may have without exceeding {@code sustc.search-cache-bytes}.
+     */
+    int capacity(String key) {
+        long hits = (config.getSearchCacheBytes() - estimate(key, 0)) / HIT_BYTES;
+        return (int) Math.max(0, Math.min(hits, Integer.MAX_VALUE - 1));
+    }
+
+    /**
+     * Returns the cached ranking, which must not be modified, or null if it is not cached.
+     */
+    synchronized List<VideoSearchIndex.Hit> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.ranked() == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.ranked();
+    }
+
+    /**
+     * Returns false if the ranking of the key was found longer than {@link #capacity} since the last bump,
+     * a read that is not even tried counts as a miss.
+     */
+    synchronized boolean fits(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.ranked() == null) {
+            misses++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the version to pass to {@link #put}, taken before the ranking is loaded.
+     */
+    synchronized long version() {
+        return version;
+    }
+
+    synchronized void put(String key, List<VideoSearchIndex.Hit> ranked, long version) {
+        if (this.version == version) {
+            insert(key, new Entry(List.copyOf(ranked), estimate(key, ranked.size())));
+        }
+    }
+
+    /**
+     * Remembers that the ranking of the key is longer than {@link #capacity}.
+     */
+    synchronized void putTooLong(String key, long version) {
+        if (this.version == version) {
+            insert(key, new Entry(null, estimate(key, 0)));
+        }
+    }
+
+    private void insert(String key, Entry entry) {
+        long capacity = config.getSearchCacheBytes();
+        if (entry.bytes() > capacity) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        bytes += entry.bytes() - (old == null ? 0 : old.bytes());
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            bytes -= it.next().bytes();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Called after a change of the videos or their views has been committed.
+     */
+    synchronized void bump() {
+        version++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized void clear() {
+        bump();
+        log.debug("Cleared the search cache after {} hits, {} misses and {} evictions", hits, misses, evictions);
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, version, entries.size(), bytes);
+    }
+
+    private static String asciiLower(String word) {
+        char[] chars = word.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+
+    // the key, and per hit its record, list slot and a short bv string
+    private static long estimate(String key, int hits) {
+        return 200 + 2L * key.length() + HIT_BYTES * hits;
+    }
+}
@@ -0,0 +1,565 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The follow relation of user_follow held in memory, so that the recommendations do not rebuild
+ * followings and followers in SQL on every call.
+ * <p>
+ * Every mid that follows or is followed gets a dense int index. Both directions are stored in CSR form,
+ * the sorted targets of node {@code i} are {@code targets[offsets[i]..offsets[i + 1])}, which costs
+ * 16 bytes per edge and a few dozen bytes per node, without an object per edge or per node.
+ * A row changed after the load is replaced by its own sorted array.
+ * <p>
+ * The graph is loaded when the application starts and after every import. {@link UserImpl} keeps it current
+ * on follow, register and deleteAccount, after the change has been written to the database.
+ * Until it is loaded, e.g. when user_follow does not exist, {@link #isLoaded()} is false and callers use SQL.
+ */
+@Component
+@Slf4j
+public class SocialGraph {
+
+    private static final long[] EMPTY = new long[0];
+
+    // level of a node that is followed but is no user, e.g. a followee missing from the imported users
+    private static final int NO_USER = Integer.MIN_VALUE;
+
+    // a null level sorts first in ORDER BY level DESC
+    private static final int NULL_LEVEL = Integer.MAX_VALUE;
+
+    /**
+     * A user suggested by {@link #suggestFriends(long, Suggestion, int)}, with the keys it is ranked by.
+     * A null level is {@code Integer.MAX_VALUE}, so that it sorts first like in ORDER BY level DESC.
+     */
+    record Suggestion(long mid, int common, int level) {
+    }
+
+    static final Comparator<Suggestion> SUGGESTION_ORDER = Comparator.comparingInt(Suggestion::common).reversed()
+            .thenComparing(Comparator.comparingInt(Suggestion::level).reversed())
+            .thenComparingLong(Suggestion::mid);
+
+    /**
+     * One direction of the edges.
+     */
+    private static final class Adjacency {
+
+        private final int loaded;
+        private final int[] offsets;
+        private final long[] targets;
+
+        // rows replaced since the load, null if unchanged
+        private long[][] changed;
+
+        Adjacency(int loaded, int[] offsets, long[] targets, int capacity) {
+            this.loaded = loaded;
+            this.offsets = offsets;
+            this.targets = targets;
+            this.changed = new long[capacity][];
+        }
+
+        long[] array(int node) {
+            long[] row = changed[node];
+            return row != null ? row : targets;
+        }
+
+        int from(int node) {
+            return changed[node] != null || node >= loaded ? 0 : offsets[node];
+        }
+
+        int to(int node) {
+            long[] row = changed[node];
+            if (row != null) {
+                return row.length;
+            }
+            return node >= loaded ? 0 : offsets[node + 1];
+        }
+
+        void add(int node, long target) {
+            long[] array = array(node);
+            int from = from(node);
+            int to = to(node);
+            int pos = Arrays.binarySearch(array, from, to, target);
+            if (pos >= 0) {
+                return;
+            }
+            pos = -pos - 1;
+            long[] row = new long[to - from + 1];
+            System.arraycopy(array, from, row, 0, pos - from);
+            row[pos - from] = target;
+            System.arraycopy(array, pos, row, pos - from + 1, to - pos);
+            changed[node] = row;
+        }
+
+        void remove(int node, long target) {
+            long[] array = array(node);
+            int from = from(node);
+            int to = to(node);
+            int pos = Arrays.binarySearch(array, from, to, target);
+            if (pos < 0) {
+                return;
+            }
+            long[] row = new long[to - from - 1];
+            System.arraycopy(array, from, row, 0, pos - from);
+            System.arraycopy(array, pos + 1, row, pos - from, to - pos - 1);
+            changed[node] = row;
+        }
+
+        void clear(int node) {
+            changed[node] = EMPTY;
+        }
+
+        void grow(int capacity) {
+            changed = Arrays.copyOf(changed, capacity);
+        }
+    }
+
+    @Autowired
+    private DataSource dataSource;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // toggles of the same edge are written and applied under the same stripe, in the same order
+    private final Object[] stripes = new Object[64];
+
+    private volatile boolean loaded;
+
+    private LongIntHashMap index = new LongIntHashMap(16);
+    private long[] mids = EMPTY;
+    private int[] levels = new int[0];
+    private int nodes;
+    private Adjacency following = new Adjacency(0, new int[1], EMPTY, 0);
+    private Adjacency followers = new Adjacency(0, new int[1], EMPTY, 0);
+
+    public SocialGraph() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    @EventListener
+    public void onApplicationStarted(ApplicationStartedEvent event) {
+        try (Connection conn = dataSource.getConnection()) {
+            reload(conn);
+        } catch (SQLException e) {
+            // the recommendations fall back to SQL
+            log.error("Failed to load the social graph", e);
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Returns the lock to hold while a follow of the edge is written to the database and applied here.
+     */
+    Object stripe(long follower, long followee) {
+        return stripes[(int) ((follower * 31 + followee) & (stripes.length - 1))];
+    }
+
+    /**
+     * Replaces the graph with the users and edges in the database.
+     */
+    void reload(Connection conn) throws SQLException {
+        long start = System.currentTimeMillis();
+        boolean autoCommit = conn.getAutoCommit();
+        // the driver only streams the rows with a fetch size inside a transaction
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.setFetchSize(10000);
+            LongIntHashMap index = new LongIntHashMap(1024);
+            long[] mids = new long[1024];
+            int[] levels = new int[1024];
+            int nodes = 0;
+            try (ResultSet rs = stmt.executeQuery("SELECT mid, level FROM UserRecord ORDER BY mid")) {
+                while (rs.next()) {
+                    if (nodes == mids.length) {
+                        mids = Arrays.copyOf(mids, nodes * 2);
+                        levels = Arrays.copyOf(levels, nodes * 2);
+                    }
+                    mids[nodes] = rs.getLong(1);
+                    int level = rs.getInt(2);
+                    levels[nodes] = rs.wasNull() ? NULL_LEVEL : level;
+                    index.put(mids[nodes], nodes);
+                    nodes++;
+                }
+            }
+            int[] sources = new int[1024];
+            int[] sinks = new int[1024];
+            int edges = 0;
+            try (ResultSet rs = stmt.executeQuery("SELECT follower, followee FROM user_follow ORDER BY follower, followee")) {
+                while (rs.next()) {
+                    int source = index.get(rs.getLong(1), -1);
+                    if (source < 0) {
+                        // the follower was deleted without its edges, the delete trigger removes them otherwise
+                        continue;
+                    }
+                    long followee = rs.getLong(2);
+                    int sink = index.get(followee, -1);
+                    if (sink < 0) {
+                        if (nodes == mids.length) {
+                            mids = Arrays.copyOf(mids, nodes * 2);
+                            levels = Arrays.copyOf(levels, nodes * 2);
+                        }
+                        mids[nodes] = followee;
+                        levels[nodes] = NO_USER;
+                        index.put(followee, nodes);
+                        sink = nodes++;
+                    }
+                    if (edges == sources.length) {
+                        sources = Arrays.copyOf(sources, edges * 2);
+                        sinks = Arrays.copyOf(sinks, edges * 2);
+                    }
+                    sources[edges] = source;
+                    sinks[edges] = sink;
+                    edges++;
+                }
+            }
+            conn.commit();
+            // the edges come sorted by follower and followee, so both directions keep their rows sorted
+            Adjacency following = build(nodes, edges, sources, sinks, mids);
+            Adjacency followers = build(nodes, edges, sinks, sources, mids);
+            lock.writeLock().lock();
+            try {
+                this.index = index;
+                this.mids = mids;
+                this.levels = levels;
+                this.nodes = nodes;
+                this.following = following;
+                this.followers = followers;
+                this.loaded = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.info("Loaded the social graph with {} nodes and {} edges in {} ms",
+                    nodes, edges, System.currentTimeMillis() - start);
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    // counting sort of the edges by their row node
+    private static Adjacency build(int nodes, int edges, int[] rows, int[] columns, long[] mids) {
+        int[] offsets = new int[nodes + 1];
+        for (int i = 0; i < edges; i++) {
+            offsets[rows[i] + 1]++;
+        }
+        for (int i = 0; i < nodes; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] next = Arrays.copyOf(offsets, nodes);
+        long[] targets = new long[edges];
+        for (int i = 0; i < edges; i++) {
+            targets[next[rows[i]]++] = mids[columns[i]];
+        }
+        return new Adjacency(nodes, offsets, targets, mids.length);
+    }
+
+    /**
+     * Empties the graph, e.g. after a truncate.
+     */
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            index = new LongIntHashMap(16);
+            mids = EMPTY;
+            levels = new int[0];
+            nodes = 0;
+            following = new Adjacency(0, new int[1], EMPTY, 0);
+            followers = new Adjacency(0, new int[1], EMPTY, 0);
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a registered user, who follows nobody yet.
+     */
+    void addUser(long mid, int level) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            int node = index.get(mid, -1);
+            if (node < 0) {
+                node = addNode(mid);
+            }
+            levels[node] = level;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int addNode(long mid) {
+        if (nodes == mids.length) {
+            int capacity = Math.max(16, nodes * 2);
+            mids = Arrays.copyOf(mids, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+            following.grow(capacity);
+            followers.grow(capacity);
+        }
+        mids[nodes] = mid;
+        levels[nodes] = NO_USER;
+        index.put(mid, nodes);
+        return nodes++;
+    }
+
+    /**
+     * Removes a deleted user with all its edges.
+     */
+    void removeUser(long mid) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            int node = index.get(mid, -1);
+            if (node < 0) {
+                return;
+            }
+            long[] array = following.array(node);
+            for (int i = following.from(node), to = following.to(node); i < to; i++) {
+                int other = index.get(array[i], -1);
+                if (other >= 0) {
+                    followers.remove(other, mid);
+                }
+            }
+            array = followers.array(node);
+            for (int i = followers.from(node), to = followers.to(node); i < to; i++) {
+                int other = index.get(array[i], -1);
+                if (other >= 0) {
+                    following.remove(other, mid);
+                }
+            }
+            following.clear(node);
+            followers.clear(node);
+            levels[node] = NO_USER;
+            // the slot of the node stays unused, a later user with the same mid gets a new one
+            index.remove(mid);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets whether the follower follows the followee, as written to user_follow.
+     */
+    void setFollowing(long follower, long followee, boolean follows) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            int source = index.get(follower, -1);
+            if (source < 0) {
+                return;
+            }
+            int sink = index.get(followee, -1);
+            if (sink < 0 && follows) {
+                sink = addNode(followee);
+            }
+            if (follows) {
+                following.add(source, followee);
+                followers.add(sink, follower);
+            } else {
+                following.remove(source, followee);
+                if (sink >= 0) {
+                    followers.remove(sink, follower);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether the mid is a user, and not only followed by one.
+     */
+    boolean isUser(long mid) {
+        lock.readLock().lock();
+        try {
+            int node = index.get(mid, -1);
+            return node >= 0 && levels[node] != NO_USER;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the sorted mids the user follows.
+     */
+    long[] following(long mid) {
+        return row(mid, true);
+    }
+
+    /**
+     * Returns the sorted mids following the user.
+     */
+    long[] followers(long mid) {
+        return row(mid, false);
+    }
+
+    private long[] row(long mid, boolean outgoing) {
+        lock.readLock().lock();
+        try {
+            int node = index.get(mid, -1);
+            if (node < 0) {
+                return EMPTY;
+            }
+            Adjacency rows = outgoing ? following : followers;
+            return Arrays.copyOfRange(rows.array(node), rows.from(node), rows.to(node));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the sorted mids of the friends of the user, those it follows and that follow it back.
+     */
+    long[] friends(long mid) {
+        lock.readLock().lock();
+        try {
+            int node = index.get(mid, -1);
+            if (node < 0) {
+                return EMPTY;
+            }
+            long[] a = following.array(node);
+            long[] b = followers.array(node);
+            int i = following.from(node), endA = following.to(node);
+            int j = followers.from(node), endB = followers.to(node);
+            long[] result = new long[Math.min(endA - i, endB - j)];
+            int n = 0;
+            // merge of the two sorted rows
+            while (i < endA && j < endB) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    result[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a page of the users with common followings, as {@link io.sustc.service.RecommenderService#recommendFriends}
+     * ranks them: by the number of common followings, then level descending, then mid.
+     */
+    long[] suggestFriends(long mid, int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            int node = index.get(mid, -1);
+            if (node < 0) {
+                return EMPTY;
+            }
+            LongIntHashMap common = commonFollowings(node);
+            int n = common.size();
+            if (offset >= n || limit <= 0) {
+                return EMPTY;
+            }
+            int[] candidates = new int[n];
+            int[] counts = new int[n];
+            for (int slot = 0, c = 0; slot < common.capacity(); slot++) {
+                if (common.used(slot)) {
+                    candidates[c] = (int) common.keyAt(slot);
+                    counts[c++] = common.valueAt(slot);
+                }
+            }
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (x, y) -> {
+                if (counts[x] != counts[y]) {
+                    return Integer.compare(counts[y], counts[x]);
+                }
+                int lx = levels[candidates[x]], ly = levels[candidates[y]];
+                if (lx != ly) {
+                    return Integer.compare(ly, lx);
+                }
+                return Long.compare(mids[candidates[x]], mids[candidates[y]]);
+            });
+            long[] page = new long[Math.min(limit, n - offset)];
+            for (int i = 0; i < page.length; i++) {
+                page[i] = mids[candidates[order[offset + i]]];
+            }
+            return page;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} users with common followings that rank after {@code after},
+     * or from the first one if it is null, in the order of {@link #suggestFriends(long, int, int)}.
+     * Only the users after the key are sorted, a deep page costs less than the first one.
+     */
+    List<Suggestion> suggestFriends(long mid, Suggestion after, int limit) {
+        lock.readLock().lock();
+        try {
+            int node = index.get(mid, -1);
+            if (node < 0 || limit <= 0) {
+                return List.of();
+            }
+            LongIntHashMap common = commonFollowings(node);
+            List<Suggestion> rest = new ArrayList<>();
+            for (int slot = 0; slot < common.capacity(); slot++) {
+                if (common.used(slot)) {
+                    int other = (int) common.keyAt(slot);
+                    Suggestion suggestion = new Suggestion(mids[other], common.valueAt(slot), levels[other]);
+                    if (after == null || SUGGESTION_ORDER.compare(suggestion, after) > 0) {
+                        rest.add(suggestion);
+                    }
+                }
+            }
+            rest.sort(SUGGESTION_ORDER);
+            return rest.size() > limit ? new ArrayList<>(rest.subList(0, limit)) : rest;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // common followings per candidate, keyed by the node of the candidate
+    private LongIntHashMap commonFollowings(int node) {
+        LongIntHashMap common = new LongIntHashMap(64);
+        long[] followees = following.array(node);
+        for (int i = following.from(node), to = following.to(node); i < to; i++) {
+            int followee = index.get(followees[i], -1);
+            if (followee < 0) {
+                continue;
+            }
+            long[] others = followers.array(followee);
+            for (int k = followers.from(followee), end = followers.to(followee); k < end; k++) {
+                int other = index.get(others[k], -1);
+                if (other >= 0 && other != node && levels[other] != NO_USER) {
+                    common.add(other, 1);
+                }
+            }
+        }
+        return common;
+    }
+}
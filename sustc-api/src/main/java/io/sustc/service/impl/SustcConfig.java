@@ -0,0 +1,103 @@
+package io.sustc.service.impl;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Tuning knobs of the service implementations, bound from the {@code sustc.*} properties.
+ * Every property has a default, so nothing has to be configured.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "sustc")
+@Data
+public class SustcConfig {
+
+    /**
+     * Number of pooled connections the import loads chunks on at the same time.
+     * Keep it below the Hikari {@code maximum-pool-size}.
+     */
+    private int importShards = 4;
+
+    /**
+     * Number of records read from an import stream before they are shipped to the database.
+     * At most {@code 2 * importShards} chunks are held in memory at the same time.
+     */
+    private int importChunkSize = 10000;
+
+    /**
+     * Whether the import drops the foreign keys and secondary indexes of the import tables before loading,
+     * and rebuilds them with set-based validation and parallel index builds afterwards.
+     */
+    private boolean importDeferConstraints = false;
+
+    /**
+     * Whether the import loads into UNLOGGED staging copies of the import tables and swaps them in at the end.
+     * Readers see the old data until the swap, and the load itself writes almost no WAL.
+     * Supersedes {@code importDeferConstraints}, since the copies get their keys and indexes after the load anyway.
+     */
+    private boolean importStaging = false;
+
+    /**
+     * Whether the import records every loaded chunk, so that an import restarted after a failure skips them.
+     * The restarted import must read the same records with the same {@code importChunkSize}.
+     * Not used with {@code importStaging}, which drops everything loaded by a failed import.
+     */
+    private boolean importCheckpoints = true;
+
+    /**
+     * Seconds between the progress reports logged during an import, 0 turns them off.
+     */
+    private int importProgressInterval = 10;
+
+    /**
+     * Whether truncate drops the import tables and recreates them empty from a snapshot of their definitions,
+     * instead of truncating them. Faster for very large tables.
+     */
+    private boolean truncateRecreate = false;
+
+    /**
+     * Maximum number of authenticated credentials remembered by the auth cache, 0 turns the cache off.
+     */
+    private int authCacheSize = 10000;
+
+    /**
+     * Seconds an authenticated credential is trusted before it is checked against the database again.
+     */
+    private int authCacheTtlSeconds = 300;
+
+    /**
+     * Number of mids a registration leases from the sequence at once, the rest of the block is handed out in memory.
+     */
+    private int midBlockSize = 100;
+
+    /**
+     * Estimated heap in bytes the cached user infos may take, the least recently read are evicted beyond it.
+     * 0 turns the cache off.
+     */
+    private long userInfoCacheBytes = 32L << 20;
+
+    /**
+     * Whether deleteAccount only flags the account {@code is_deleted} and purges its rows in the background.
+     * Its credentials are invalid right away, its user info and the lists of the others follow with the purge.
+     */
+    private boolean deleteAccountAsync = false;
+
+    /**
+     * Number of rows of a deleted account removed per transaction by the background purge.
+     */
+    private int deleteAccountBatchSize = 5000;
+
+    /**
+     * Whether searchVideo is answered from a trigram index held in memory instead of the database.
+     * The index is built when the application starts, from every video, and costs a few dozen bytes per character of
+     * title, description and owner name.
+     */
+    private boolean searchInMemory = false;
+
+    /**
+     * Estimated heap in bytes the cached search results may take, the least recently read are evicted beyond it.
+     * A cached search holds its complete ranking, about a hundred bytes per matched video. 0 turns the cache off.
+     */
+    private long searchCacheBytes = 16L << 20;
+}
@@ -5,12 +5,15 @@ import io.sustc.dto.RegisterUserReq;
 import io.sustc.dto.UserInfoResp;
 import io.sustc.service.UserService;
 import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import javax.sql.DataSource;
 import java.sql.*;
 import java.sql.Date;
+import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.*;
 
 
@@ -20,52 +23,29 @@ public class UserImpl implements UserService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private AuthCache authCache;
+
+    @Autowired
+    private MidAllocator midAllocator;
+
+    @Autowired
+    private SocialGraph socialGraph;
+
+    @Autowired
+    private UserInfoCache userInfoCache;
+
+    @Autowired
+    private AccountDeleter accountDeleter;
+
+    @Autowired
+    private SustcConfig config;
+
     @Override
     public long register(RegisterUserReq req) {
-        if (Objects.equals(req.getPassword(), null)) {
-            return -1;
-        }
-        if (Objects.equals(req.getName(), null)) {
-            return -1;
-        }
-        if (Objects.equals(req.getSex(), null)) {
+        if (!isValidReq(req)) {
             return -1;
         }
-        if (!Objects.equals(req.getBirthday(), null) && !Objects.equals(req.getBirthday(), "null") ) {
-            if(!req.getBirthday().matches("\\d{1,2}月\\d{1,2}日")) {
-                return -1;
-            }
-        }
-        String birthday = req.getBirthday();
-        boolean isValidDate = false;
-        if(birthday!=null&&!birthday.equals("null")) {
-            String[] parts;
-            int month = 0;
-            int day = 0;
-            // 通过正则表达式匹配不同的格式
-            if (birthday.matches("\\d{1,2}月\\d{1,2}日")) {
-                parts = birthday.split("月");
-                month = Integer.parseInt(parts[0]);
-                day = Integer.parseInt(parts[1].replace("日", ""));
-            } else if (birthday.matches("\\d{1,2}-\\d{1,2}")) {
-                parts = birthday.split("-");
-                month = Integer.parseInt(parts[0]);
-                day = Integer.parseInt(parts[1]);
-            }
-
-            if (month >= 1 && month <= 12 && day >= 1 && day <= 31) {
-                Calendar calendar = Calendar.getInstance();
-                calendar.set(Calendar.MONTH, month - 1); // Calendar中月份从0开始
-                calendar.set(Calendar.DAY_OF_MONTH, day);
-
-                // 检查日期是否合法，考虑月份的天数
-                isValidDate = day == calendar.get(Calendar.DAY_OF_MONTH);
-            }
-            // 如果月份和日期有效，则设置日期，否则设置为 NULL
-            if (!isValidDate) {
-                return -1;
-            }
-        }
 
         try(Connection conn = dataSource.getConnection()) {
             if (req.getQq() != null) {
@@ -98,523 +78,404 @@ public class UserImpl implements UserService {
                     }
                 }
             }
-            long mid = 0;
-            String max = "SELECT MAX(mid) FROM UserRecord";
-            try (PreparedStatement secondStmt = conn.prepareStatement(max)) {
-                try (ResultSet rs = secondStmt.executeQuery()) {
-                    if (rs.next()) {
-                        Random rand = new Random();
-                        mid = rs.getLong(1) + rand.nextLong(100);
-                    }
+            // leased from a sequence, so concurrent registrations never draw the same mid
+            long mid = midAllocator.next(conn);
+            String sql_insert = "INSERT INTO UserRecord (mid, name, sex, birthday, level, sign, following, identity, password, qq, wechat, is_deleted) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement thirdStmt = conn.prepareStatement(sql_insert)) {
+                thirdStmt.setLong(1, mid);
+                thirdStmt.setString(2, req.getName());
+                thirdStmt.setString(3, sexOf(req.getSex()));
+                LocalDate birthday = birthdayOf(req.getBirthday());
+                thirdStmt.setDate(4, birthday == null ? null : Date.valueOf(birthday));
+                // level is also Enum type
+                thirdStmt.setInt(5, 1);
+                thirdStmt.setString(6, "");
+                thirdStmt.setArray(7, conn.createArrayOf("bigint", new Long[0]));
+                thirdStmt.setString(8, "USER");
+                thirdStmt.setString(9, req.getPassword());
+                thirdStmt.setString(10, req.getQq());
+                thirdStmt.setString(11, req.getWechat());
+                thirdStmt.setObject(12, false);
+
+                int rowsAffected = thirdStmt.executeUpdate();
+                // 如果需要获取插入的行数，可以使用 rowsAffected 变量
+                if (rowsAffected == 1) {
+                    socialGraph.addUser(mid, 1);
+                    return mid;
+                } else {
+                    return -1;
                 }
-                String sql_insert = "INSERT INTO UserRecord (mid, name, sex, birthday, level, sign, following, identity, password, qq, wechat, is_deleted) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-                try (PreparedStatement thirdStmt = conn.prepareStatement(sql_insert)) {
-                    thirdStmt.setLong(1, mid);
-                    thirdStmt.setString(2, req.getName());
-                    // Enum values in Java have a name() method that returns the name of the enum constant as a String
-                    String sex = req.getSex().name();
-                    if (sex.equals("男") || sex.equals("女")) {
-                        thirdStmt.setString(3, req.getSex().name());
-                    } else {
-                        thirdStmt.setString(3, "保密");
-                    }
-                    // the format of birthday has been changed into standard
-                    if(birthday!=null) {
-                        String[] parts;
-                        int month = 0;
-                        int day = 0;
-
-                        int DefaultYear = Calendar.getInstance().get(Calendar.YEAR); // 默认年份，例如当前年份
-
-                        // 通过正则表达式匹配不同的格式
-                        if (birthday.matches("\\d{1,2}月\\d{1,2}日")) {
-                            parts = birthday.split("月");
-                            month = Integer.parseInt(parts[0]);
-                            day = Integer.parseInt(parts[1].replace("日", ""));
-                        } else if (birthday.matches("\\d{1,2}-\\d{1,2}")) {
-                            parts = birthday.split("-");
-                            month = Integer.parseInt(parts[0]);
-                            day = Integer.parseInt(parts[1]);
-                        }
+            }
+        }catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    /**
+     * Registers the users of a batch with one uniqueness query and one COPY,
+     * as if {@link #register} were called for each request in order.
+     * A qq or wechat is taken by the first valid request that uses it, later requests with it fail.
+     *
+     * @return the mid of every request in input order, -1 for those that failed
+     */
+    @Override
+    public List<Long> registerAll(List<RegisterUserReq> reqs) {
+        long[] result = new long[reqs.size()];
+        Set<String> qqs = new HashSet<>();
+        Set<String> wechats = new HashSet<>();
+        for (RegisterUserReq req : reqs) {
+            if (isValidReq(req)) {
+                if (req.getQq() != null) {
+                    qqs.add(req.getQq());
+                }
+                if (req.getWechat() != null) {
+                    wechats.add(req.getWechat());
+                }
+            }
+        }
 
-                        // 如果月份和日期有效，则设置日期，否则设置为 NULL
-                        if (isValidDate) {
-                            String completeBirthday = DefaultYear + "-" + month + "-" + day;
-                            thirdStmt.setDate(4, Date.valueOf(completeBirthday));
-                        }else{
-                            thirdStmt.setDate(4, null);
+        try (Connection conn = dataSource.getConnection()) {
+            // the qq and wechat ids of the batch that already belong to someone
+            Set<String> takenQq = new HashSet<>();
+            Set<String> takenWechat = new HashSet<>();
+            if (!qqs.isEmpty() || !wechats.isEmpty()) {
+                String sql = "SELECT qq, wechat FROM UserRecord WHERE qq = ANY (?) OR wechat = ANY (?)";
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setArray(1, conn.createArrayOf("varchar", qqs.toArray()));
+                    stmt.setArray(2, conn.createArrayOf("varchar", wechats.toArray()));
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            takenQq.add(rs.getString(1));
+                            takenWechat.add(rs.getString(2));
                         }
-                    }else {
-                        thirdStmt.setDate(4, null);
                     }
+                }
+            }
 
-                    // level is also Enum type
-                    thirdStmt.setInt(5, 1);
-                    thirdStmt.setString(6, "");
-                    thirdStmt.setArray(7, conn.createArrayOf("bigint", new Long[0]));
-                    thirdStmt.setString(8, "USER");
-                    thirdStmt.setString(9, req.getPassword());
-                    thirdStmt.setString(10, req.getQq());
-                    thirdStmt.setString(11, req.getWechat());
-                    thirdStmt.setObject(12, false);
-
-                    int rowsAffected = thirdStmt.executeUpdate();
-                    // 如果需要获取插入的行数，可以使用 rowsAffected 变量
-                    if (rowsAffected == 1) {
-                        return mid;
+            // in input order, so the first request with a qq or wechat wins it
+            int accepted = 0;
+            for (int i = 0; i < reqs.size(); i++) {
+                RegisterUserReq req = reqs.get(i);
+                if (!isValidReq(req)
+                        || req.getQq() != null && takenQq.contains(req.getQq())
+                        || req.getWechat() != null && takenWechat.contains(req.getWechat())) {
+                    result[i] = -1;
+                    continue;
+                }
+                if (req.getQq() != null) {
+                    takenQq.add(req.getQq());
+                }
+                if (req.getWechat() != null) {
+                    takenWechat.add(req.getWechat());
+                }
+                result[i] = 0;
+                accepted++;
+            }
+
+            long[] mids = midAllocator.next(conn, accepted);
+            List<Integer> rows = new ArrayList<>(accepted);
+            for (int i = 0, k = 0; i < result.length; i++) {
+                if (result[i] == 0) {
+                    result[i] = mids[k++];
+                    rows.add(i);
+                }
+            }
+            if (!rows.isEmpty()) {
+                // the same columns and values as the INSERT of register
+                String sql_copy = "COPY UserRecord (mid, name, sex, birthday, level, sign, following, identity, password, qq, wechat, is_deleted) FROM STDIN";
+                new CopyLoader(conn).copy(sql_copy, rows, (i, out) -> {
+                    RegisterUserReq req = reqs.get(i);
+                    out.field(result[i]).field(req.getName()).field(sexOf(req.getSex()));
+                    LocalDate birthday = birthdayOf(req.getBirthday());
+                    if (birthday == null) {
+                        out.nul();
                     } else {
-                        return -1;
+                        out.date(birthday.getYear(), birthday.getMonthValue(), birthday.getDayOfMonth());
                     }
+                    out.field(1).field("").field(new long[0]).field("USER")
+                            .field(req.getPassword()).field(req.getQq()).field(req.getWechat()).field(false)
+                            .endRow();
+                });
+                for (int i : rows) {
+                    socialGraph.addUser(result[i], 1);
                 }
             }
-        }catch (SQLException e) {
+        } catch (SQLException e) {
             throw new RuntimeException(e);
         }
+
+        List<Long> mids = new ArrayList<>(result.length);
+        for (long mid : result) {
+            mids.add(mid);
+        }
+        return mids;
+    }
+
+    private static boolean isValidReq(RegisterUserReq req) {
+        if (req == null || req.getPassword() == null || req.getName() == null || req.getSex() == null) {
+            return false;
+        }
+        // no birthday is fine, a given one must be a real day in the X月X日 format
+        String birthday = req.getBirthday();
+        return birthday == null || birthday.equals("null") || birthdayOf(birthday) != null;
+    }
+
+    /**
+     * Parses a birthday in the X月X日 format into that day of the current year, or returns null if it is not one.
+     */
+    private static LocalDate birthdayOf(String birthday) {
+        if (birthday == null || !birthday.matches("\\d{1,2}月\\d{1,2}日")) {
+            return null;
+        }
+        String[] parts = birthday.split("月");
+        int month = Integer.parseInt(parts[0]);
+        int day = Integer.parseInt(parts[1].replace("日", ""));
+        int year = LocalDate.now().getYear(); // 默认年份，例如当前年份
+        if (month < 1 || month > 12 || day < 1 || day > YearMonth.of(year, month).lengthOfMonth()) {
+            return null;
+        }
+        return LocalDate.of(year, month, day);
+    }
+
+    private static String sexOf(RegisterUserReq.Gender sex) {
+        // Enum values in Java have a name() method that returns the name of the enum constant as a String
+        String name = sex.name();
+        if (name.equals("男") || name.equals("女")) {
+            return name;
+        }
+        return "保密";
     }
 
     @Override
     public boolean deleteAccount(AuthInfo auth, long mid) {
-        String sql = "DELETE FROM UserRecord WHERE mid = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            if (isValidAuth(auth, conn) && isValidMid(mid, conn) && isAuthorized(auth, mid, conn)) {
-                stmt.setLong(1, mid);
-                // perform the deletion operation
-                int rowsAffected = stmt.executeUpdate();
-                if (rowsAffected == 1) {
-                    return true;
-                }
-            } else {
+        try (Connection conn = dataSource.getConnection()) {
+            Principal principal = resolve(auth, conn);
+            if (!principal.valid() || !isAuthorized(principal, mid, conn)) {
                 return false;
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-        return false;
-    }
-
-    private boolean isValidMid(long mid, Connection conn) {
-        String sql = "SELECT COUNT(*) FROM UserRecord WHERE mid = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setLong(1, mid);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    // rowCount is the answer of COUNT(*)
-                    int rowCount = rs.getInt(1);
-                    return rowCount == 1;
-                }
+            // set-based, in one transaction; or flagged now and purged in the background
+            if (config.isDeleteAccountAsync()) {
+                return accountDeleter.softDelete(conn, mid);
             }
+            return accountDeleter.delete(conn, mid);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
-        return false;
     }
 
     public boolean isValidAuth(AuthInfo auth, Connection conn) {
-        // judge qq and wechat firstly
-        if(auth.getWechat()!=null&&!auth.getWechat().equals("null")) {
-            String sql = "SELECT COUNT(mid) FROM UserRecord WHERE wechat = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        return resolve(auth, conn).valid();
+    }
+
+    /**
+     * Resolves the user the auth info authenticates as, with one indexed query or from the {@link AuthCache}.
+     * Wechat is checked first, then qq, then mid and password, and the credential has to match exactly one user.
+     *
+     * @return the principal of the user, {@link Principal#INVALID} if the auth info is invalid
+     */
+    public Principal resolve(AuthInfo auth, Connection conn) {
+        String key = AuthCache.key(auth);
+        if (key == null) {
+            return Principal.INVALID;
+        }
+        Principal cached = authCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = authCache.generation();
+        // LIMIT 2 is enough to tell a unique credential from a shared one
+        String sql;
+        if (auth.getWechat() != null && !auth.getWechat().equals("null")) {
+            sql = "SELECT mid, password, qq, wechat, identity, coin, is_deleted FROM UserRecord WHERE wechat = ? LIMIT 2";
+        } else if (auth.getQq() != null && !auth.getQq().equals("null")) {
+            sql = "SELECT mid, password, qq, wechat, identity, coin, is_deleted FROM UserRecord WHERE qq = ? LIMIT 2";
+        } else {
+            sql = "SELECT mid, password, qq, wechat, identity, coin, is_deleted FROM UserRecord WHERE mid = ? AND password = ? LIMIT 2";
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            if (auth.getWechat() != null && !auth.getWechat().equals("null")) {
                 stmt.setString(1, auth.getWechat());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        // valid--not can't-find, not point-to-different-user
-                        int rowCount = rs.getInt(1);
-                        return rowCount == 1;
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        } else if (auth.getQq()!=null&&!auth.getQq().equals("null")) {
-            String sql = "SELECT COUNT(mid) FROM UserRecord WHERE qq = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            } else if (auth.getQq() != null && !auth.getQq().equals("null")) {
                 stmt.setString(1, auth.getQq());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        // valid--not can't-find, not point-to-different-user
-                        int rowCount = rs.getInt(1);
-                        return rowCount == 1;
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
+            } else {
+                stmt.setLong(1, auth.getMid());
+                stmt.setString(2, auth.getPassword());
             }
-        } else {
-            if(auth.getMid()!=0) {
-                String sql = "SELECT COUNT(*) FROM UserRecord WHERE mid = ? AND password = ?";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setLong(1, auth.getMid());
-                    stmt.setString(2, auth.getPassword());
-                    try (ResultSet rs = stmt.executeQuery()) {
-                        if (rs.next()) {
-                            int rowCount = rs.getInt(1);
-                            return rowCount == 1;
-                        }
-                    }
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
+            try (ResultSet rs = stmt.executeQuery()) {
+                // valid--not can't-find, not point-to-different-user
+                if (!rs.next()) {
+                    return Principal.INVALID;
                 }
+                boolean deleted = rs.getBoolean("is_deleted");
+                Principal principal = new Principal(rs.getLong("mid"), rs.getString("password"), rs.getString("qq"),
+                        rs.getString("wechat"), rs.getString("identity"), rs.getInt("coin"), deleted, !deleted);
+                if (rs.next()) {
+                    return Principal.INVALID;
+                }
+                authCache.put(key, principal, generation);
+                return principal;
             }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
-        return false;
     }
 
-    private boolean isAuthorized(AuthInfo auth, long mid, Connection conn) {
-        String AuthIdentity = "";
-        if(auth.getWechat()!=null&&!auth.getWechat().equals("null")) {
-            String sql = "SELECT identity FROM UserRecord WHERE wechat = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, auth.getWechat());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        // when using ENUM type in postgres, it will return a String type in Java.
-                        AuthIdentity = rs.getString(1);
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        } else if (auth.getQq()!=null&&!auth.getQq().equals("null")) {
-            String sql = "SELECT identity FROM UserRecord WHERE qq = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, auth.getQq());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        AuthIdentity = rs.getString(1);
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        }else {
-            String sql = "SELECT identity FROM UserRecord WHERE mid = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, auth.getMid());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        AuthIdentity = rs.getString(1);
-
-                    }
+    // a user may delete itself, a superuser may also delete any user
+    private boolean isAuthorized(Principal principal, long mid, Connection conn) {
+        String sql = "SELECT identity FROM UserRecord WHERE mid = ?";
+        String MidIdentity;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, mid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    // the user to delete does not exist
+                    return false;
                 }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
+                MidIdentity = rs.getString(1);
             }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
-        if (AuthIdentity.equals("USER")) {
-            return auth.getMid() == mid;
-        } else {
-            String sql = "SELECT identity FROM UserRecord WHERE mid = ?";
-            String MidIdentity = "";
-            // Create a new PreparedStatement for the second query
-            try (PreparedStatement secondStmt = conn.prepareStatement(sql)) {
-                secondStmt.setLong(1, mid);
-                try (ResultSet midRs = secondStmt.executeQuery()) {
-                    if (midRs.next()) {
-                        MidIdentity = midRs.getString(1);
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-            if (auth.getMid() == mid) {
-                return true;
-            } else return MidIdentity.equals("USER");
+        if (principal.mid() == mid) {
+            return true;
         }
+        return principal.isSuperuser() && "USER".equals(MidIdentity);
     }
 
     @Override
     public boolean follow(AuthInfo auth, long followeeMid) {
-        String sql = "SELECT COUNT(*) FROM UserRecord WHERE mid = ?";
+        // one statement toggles the edge: it is deleted if the user already follows, otherwise inserted; a returned row means following afterwards
+        String sql = """
+                WITH followee AS (SELECT mid FROM UserRecord WHERE mid = ? AND is_deleted IS NOT TRUE),
+                     removed AS (DELETE FROM user_follow
+                                 WHERE follower = ?
+                                   AND followee = (SELECT mid FROM followee)
+                                 RETURNING followee)
+                INSERT INTO user_follow (follower, followee)
+                SELECT ?, mid
+                FROM followee
+                WHERE NOT EXISTS (SELECT 1 FROM removed)
+                ON CONFLICT DO NOTHING
+                RETURNING followee
+                """;
         try (Connection conn = dataSource.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
-            if (!isValidAuth(auth, conn)) {
+            Principal principal = resolve(auth, conn);
+            if (!principal.valid() || principal.mid() == followeeMid) {
                 return false;
             }
             stmt.setLong(1, followeeMid);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    // valid--not can't-find, not point-to-different-user
-                    int rowCount = rs.getInt(1);
-                    if(rowCount != 1){
-                        return false;
-                    }
-                }
-            }
-            if(auth.getQq()!=null&&!auth.getQq().equals("null")) {
-                String sql2 = "SELECT mid, following FROM UserRecord WHERE qq = ?";
-                try (PreparedStatement secondStmt = conn.prepareStatement(sql2)) {
-                    secondStmt.setString(1, auth.getQq());
-                    try (ResultSet rs = secondStmt.executeQuery()) {
-                        if (rs.next()) {
-                            long mid =  rs.getLong("mid");
-                            if(mid==followeeMid){
-                                return false;
-                            }
-                            Array followingArray = rs.getArray("following");
-                            if (followingArray != null) {
-                                ArrayList<Long> followees = new ArrayList<>(Arrays.asList((Long[]) followingArray.getArray()));
-                                if (followees.contains(followeeMid)) {
-                                    // If already following, unfollow the user
-                                    followees.remove(followeeMid);
-                                    if (update(conn, auth, followees)) {
-                                        return false;
-                                    }
-                                } else {
-                                    // If not following, follow the user
-                                    followees.add(followeeMid);
-                                    if (update(conn, auth, followees)) {
-                                        return true;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-
-            } else if (auth.getWechat()!=null&&!auth.getWechat().equals("null")) {
-                String sql2 = "SELECT mid, following FROM UserRecord WHERE wechat = ?";
-                try (PreparedStatement secondStmt = conn.prepareStatement(sql2)) {
-                    secondStmt.setString(1, auth.getWechat());
-                    try (ResultSet rs = secondStmt.executeQuery()) {
-                        if (rs.next()) {
-                            long mid =  rs.getLong("mid");
-                            if(mid==followeeMid){
-                                return false;
-                            }
-                            Array followingArray = rs.getArray("following");
-                            if (followingArray != null) {
-                                ArrayList<Long> followees = new ArrayList<>(Arrays.asList((Long[]) followingArray.getArray()));
-                                if (followees.contains(followeeMid)) {
-                                    // If already following, unfollow the user
-                                    followees.remove(followeeMid);
-                                    if (update(conn, auth, followees)) {
-                                        return false;
-                                    }
-                                } else {
-                                    // If not following, follow the user
-                                    followees.add(followeeMid);
-                                    if (update(conn, auth, followees)) {
-                                        return true;
-                                    }
-                                }
-                            }
-                        }
-                    }
+            stmt.setLong(2, principal.mid());
+            stmt.setLong(3, principal.mid());
+            // toggles of the same edge reach the database and the social graph in the same order
+            synchronized (socialGraph.stripe(principal.mid(), followeeMid)) {
+                boolean following;
+                try (ResultSet rs = stmt.executeQuery()) {
+                    following = rs.next();
                 }
-            }else {
-                String sql2 = "SELECT mid, following FROM UserRecord WHERE mid = ?";
-                try (PreparedStatement secondStmt = conn.prepareStatement(sql2)) {
-                    secondStmt.setLong(1, auth.getMid());
-                    try (ResultSet rs = secondStmt.executeQuery()) {
-                        if (rs.next()) {
-                            long mid =  rs.getLong("mid");
-                            if(mid==followeeMid){
-                                return false;
-                            }
-                            Array followingArray = rs.getArray("following");
-                            if (followingArray != null) {
-                                ArrayList<Long> followees = new ArrayList<>(Arrays.asList((Long[]) followingArray.getArray()));
-                                if (followees.contains(followeeMid)) {
-                                    // If already following, unfollow the user
-                                    followees.remove(followeeMid);
-                                    if (update(conn, auth, followees)) {
-                                        return false;
-                                    }
-                                } else {
-                                    // If not following, follow the user
-                                    followees.add(followeeMid);
-                                    if (update(conn, auth, followees)) {
-                                        return true;
-                                    }
-                                }
-                            }
-                        }
-                    }
+                // false without an unfollow if the followee does not exist, its edges are left alone
+                if (following || socialGraph.isUser(followeeMid)) {
+                    socialGraph.setFollowing(principal.mid(), followeeMid, following);
                 }
+                userInfoCache.invalidate(principal.mid());
+                userInfoCache.invalidate(followeeMid);
+                return following;
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
-        return false;
     }
 
-    private boolean update(Connection conn, AuthInfo auth, ArrayList<Long> followees) {
-        Long[] followingArray = followees.toArray(new Long[0]);
-        if(auth.getQq()!=null&&!auth.getQq().equals("null")){
-            String sql = "UPDATE UserRecord SET following = ? WHERE qq = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                Array following = conn.createArrayOf("BIGINT", followingArray);
-                stmt.setArray(1, following);
-                stmt.setString(2, auth.getQq());
-                int rowsAffected = stmt.executeUpdate();
-                if (rowsAffected == 1) {
-                    return true;
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        }else if(auth.getWechat()!=null&&!auth.getWechat().equals("null")) {
-            String sql = "UPDATE UserRecord SET following = ? WHERE wechat = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                Array following = conn.createArrayOf("BIGINT", followingArray);
-                stmt.setArray(1, following);
-                stmt.setString(2, auth.getWechat());
-                int rowsAffected = stmt.executeUpdate();
-                if (rowsAffected == 1) {
-                    return true;
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        }else {
-            String sql = "UPDATE UserRecord SET following = ? WHERE mid = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                Array following = conn.createArrayOf("BIGINT", followingArray);
-                stmt.setArray(1, following);
-                stmt.setLong(2, auth.getMid());
-                int rowsAffected = stmt.executeUpdate();
-                if (rowsAffected == 1) {
-                    return true;
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
+    /**
+     * The columns read by {@link #userInfoOf}, arrays as text so that {@link ArrayText} parses them
+     * straight into {@code long[]} / {@code String[]}.
+     */
+    private static final String sql_user_info = """
+            SELECT ui.mid,
+                   ui.coin,
+                   ui.following::text,
+                   ui.follower::text,
+                   ui.watched::text,
+                   ARRAY(SELECT bv_liked FROM likes WHERE mid_liked = ui.mid)::text,
+                   ARRAY(SELECT bv_favorite FROM favorites WHERE mid_favorite = ui.mid)::text,
+                   ARRAY(SELECT bv FROM VideoRecord WHERE ownerMid = ui.mid)::text
+            FROM UserInfoResp ui
+            """;
+
+    @Override
+    public UserInfoResp getUserInfo(long mid) {
+        UserInfoResp cached = userInfoCache.get(mid);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = userInfoCache.generation();
+        UserInfoResp info = loadUserInfo(mid);
+        userInfoCache.put(info, generation);
+        return info;
+    }
+
+    private UserInfoResp loadUserInfo(long mid) {
+        // all fields in one query
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql_user_info + "WHERE ui.mid = ?")) {
+            stmt.setLong(1, mid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? userInfoOf(rs) : null;
             }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
-        return false;
     }
 
+    /**
+     * Reads the cached users from the cache, and all others with one query on one connection.
+     */
     @Override
-    public UserInfoResp getUserInfo(long mid) {
-        String sql0 = "SELECT COUNT(*) FROM UserInfoResp WHERE mid = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt0 = conn.prepareStatement(sql0)) {
-            stmt0.setLong(1, mid);
-            try (ResultSet rs = stmt0.executeQuery()) {
-                if (rs.next()) {
-                    int rowCount = rs.getInt(1);
-                    if (rowCount == 0) {
-                        return null;
-                    }
-                }
+    public List<UserInfoResp> getUserInfos(long[] mids) {
+        UserInfoResp[] result = new UserInfoResp[mids.length];
+        long[] missing = new long[mids.length];
+        int n = 0;
+        for (int i = 0; i < mids.length; i++) {
+            result[i] = userInfoCache.get(mids[i]);
+            if (result[i] == null) {
+                missing[n++] = mids[i];
             }
-            int coin = 0;
-            long[] following = new long[0];
-            long[] follower = new long[0];
-            String[] watched = new String[0];
-            String[] liked;
-            String[] collected;
-            String[] posted;
-            String sql = "SELECT coin, following, follower, watched FROM UserInfoResp WHERE mid = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, mid);
+        }
+        if (n > 0) {
+            long generation = userInfoCache.generation();
+            Map<Long, UserInfoResp> loaded = new HashMap<>();
+            try (Connection conn = dataSource.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(sql_user_info + "WHERE ui.mid = ANY (?)")) {
+                // a long[] is sent as bigint[] without boxing
+                stmt.setArray(1, conn.unwrap(PGConnection.class).createArrayOf("int8", Arrays.copyOf(missing, n)));
                 try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        coin = rs.getInt("coin");
-                        Array followingArray = rs.getArray("following");
-                        Long[] objectArray1 = (Long[]) followingArray.getArray();
-                        following = new long[objectArray1.length];
-
-                        for (int i = 0; i < objectArray1.length; i++) {
-                            following[i] = objectArray1[i];
-                        }
-                        Array followerArray = rs.getArray("follower");
-                        Long[] objectArray2 = (Long[]) followerArray.getArray();
-                        follower = new long[objectArray2.length];
-
-                        for (int i = 0; i < objectArray2.length; i++) {
-                            follower[i] = objectArray2[i];
-                        }
-                        Array watchedArray = rs.getArray("watched");
-                        watched = (String[]) watchedArray.getArray();
-                    }
-                }
-                String like_sql = "SELECT bv_liked FROM likes WHERE mid_liked = ?";
-                try (PreparedStatement stmt1 = conn.prepareStatement(like_sql)) {
-                    stmt1.setLong(1, mid);
-                    try (ResultSet rs = stmt1.executeQuery()) {
-                        List<String> likedArray = new ArrayList<>();
-                        while (rs.next()) {
-                            likedArray.add(rs.getString("bv_liked"));
-                        }
-                        liked = likedArray.toArray(new String[0]);
+                    while (rs.next()) {
+                        UserInfoResp info = userInfoOf(rs);
+                        loaded.put(info.getMid(), info);
+                        userInfoCache.put(info, generation);
                     }
                 }
-                String collect_sql = "SELECT bv_favorite FROM favorites WHERE mid_favorite = ?";
-                try (PreparedStatement stmt2 = conn.prepareStatement(collect_sql)) {
-                    stmt2.setLong(1, mid);
-                    try (ResultSet rs = stmt2.executeQuery()) {
-                        List<String> collectedArray = new ArrayList<>();
-                        while (rs.next()) {
-                            collectedArray.add(rs.getString("bv_favorite"));
-                        }
-                        collected = collectedArray.toArray(new String[0]);
-                    }
-                }
-                String post_sql = "SELECT bv FROM VideoRecord WHERE ownermid = ?";
-                try (PreparedStatement stmt3 = conn.prepareStatement(post_sql)) {
-                    stmt3.setLong(1, mid);
-                    try (ResultSet rs = stmt3.executeQuery()) {
-                        List<String> postedArray = new ArrayList<>();
-                        while (rs.next()) {
-                            postedArray.add(rs.getString("bv"));
-                        }
-                        posted = postedArray.toArray(new String[0]);
-
-                    }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            for (int i = 0; i < mids.length; i++) {
+                if (result[i] == null) {
+                    result[i] = loaded.get(mids[i]);
                 }
             }
-            return new UserInfoResp(mid, coin, following, follower, watched, liked, collected, posted);
-            // Return null if no user is found
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
         }
+        return Arrays.asList(result);
     }
 
-    //this method is intended to construct an authinfo with complete info with limited provided info
-    public AuthInfo construct_full_authinfo(AuthInfo authInfo, Connection conn) {
-        String sql;
-        PreparedStatement stmt;
-        ResultSet rs;
-
-        try {
-            // Determine the query based on provided info
-            if (authInfo.getQq() != null && !authInfo.getQq().equals("null")) {
-                sql = "SELECT * FROM authinfo WHERE qq = ?";
-                stmt = conn.prepareStatement(sql);
-                stmt.setString(1, authInfo.getQq());
-            } else if (authInfo.getWechat() != null && !authInfo.getWechat().equals("null")) {
-                sql = "SELECT * FROM authinfo WHERE wechat = ?";
-                stmt = conn.prepareStatement(sql);
-                stmt.setString(1, authInfo.getWechat());
-            } else if (authInfo.getMid() != 0) {
-                sql = "SELECT * FROM authinfo WHERE mid = ?";
-                stmt = conn.prepareStatement(sql);
-                stmt.setLong(1, authInfo.getMid());
-            } else {
-                // Handle case where no identifying information is provided
-                return null; // or throw an exception
-            }
-
-            // Execute the query
-            rs = stmt.executeQuery();
-            if (rs.next()) {
-                // Construct a new AuthInfo object from the ResultSet
-                return AuthInfo.builder()
-                        .mid(rs.getLong("mid"))
-                        .password(rs.getString("password"))
-                        .qq(rs.getString("qq"))
-                        .wechat(rs.getString("wechat"))
-                        .build();
-            } else {
-                return null; // or handle case where no record is found
-            }
-        } catch (SQLException e) {
-            // Handle SQL exception
-            e.printStackTrace();
-            return null;
-        }
+    private static UserInfoResp userInfoOf(ResultSet rs) throws SQLException {
+        return new UserInfoResp(rs.getLong(1),
+                rs.getInt(2),
+                ArrayText.longs(rs.getString(3)),
+                ArrayText.longs(rs.getString(4)),
+                ArrayText.strings(rs.getString(5)),
+                ArrayText.strings(rs.getString(6)),
+                ArrayText.strings(rs.getString(7)),
+                ArrayText.strings(rs.getString(8)));
     }
 
 
@@ -0,0 +1,133 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.UserInfoResp;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Read-through cache of {@link UserInfoResp} by mid, for {@link UserImpl#getUserInfo}.
+ * <p>
+ * Entries are kept in access order and the least recently read are evicted once the estimated size of the cached
+ * arrays exceeds {@code sustc.user-info-cache-bytes}. A missing user is not cached, it may be registered later.
+ * <p>
+ * Every write that changes a user info has to invalidate the users it touches: follow (both users),
+ * likeVideo, collectVideo, postVideo, deleteVideo (the owner and everyone who watched, liked or collected the video),
+ * deleteAccount (the user, everyone it follows or is followed by, and everyone who watched, liked or collected its videos),
+ * and anything that records views.
+ * Imports and truncates clear the cache.
+ */
+@Component
+@Slf4j
+public class UserInfoCache {
+
+    /**
+     * @param hits      reads answered from the cache
+     * @param misses    reads that went to the database
+     * @param evictions entries dropped to stay within the size bound
+     * @param size      entries currently cached
+     * @param bytes     estimated heap of the cached entries
+     */
+    public record Stats(long hits, long misses, long evictions, int size, long bytes) {
+
+        public double hitRatio() {
+            long reads = hits + misses;
+            return reads == 0 ? 0 : (double) hits / reads;
+        }
+    }
+
+    private record Entry(UserInfoResp info, long bytes) {
+    }
+
+    @Autowired
+    private SustcConfig config;
+
+    // access order, the first entry is the least recently read
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private long bytes;
+
+    // bumped by every invalidation, a load that started before one must not put its result
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Returns a copy of the cached info of the user, or null if it is not cached.
+     */
+    synchronized UserInfoResp get(long mid) {
+        Entry entry = entries.get(mid);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return copy(entry.info());
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put}, taken before the user info is loaded.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    synchronized void put(UserInfoResp info, long generation) {
+        long capacity = config.getUserInfoCacheBytes();
+        if (info == null || capacity <= 0 || this.generation != generation) {
+            return;
+        }
+        Entry entry = new Entry(copy(info), estimate(info));
+        Entry old = entries.put(info.getMid(), entry);
+        bytes += entry.bytes() - (old == null ? 0 : old.bytes());
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            bytes -= it.next().bytes();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    synchronized void invalidate(long mid) {
+        generation++;
+        Entry old = entries.remove(mid);
+        if (old != null) {
+            bytes -= old.bytes();
+        }
+    }
+
+    void invalidate(Iterable<Long> mids) {
+        for (long mid : mids) {
+            invalidate(mid);
+        }
+    }
+
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+        bytes = 0;
+        log.debug("Cleared the user info cache after {} hits, {} misses and {} evictions", hits, misses, evictions);
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    // the callers get their own arrays, a caller changing them must not change the cached entry
+    private static UserInfoResp copy(UserInfoResp info) {
+        return new UserInfoResp(info.getMid(), info.getCoin(),
+                info.getFollowing().clone(), info.getFollower().clone(), info.getWatched().clone(),
+                info.getLiked().clone(), info.getCollected().clone(), info.getPosted().clone());
+    }
+
+    // object headers and array slots, plus a short string per BV
+    private static long estimate(UserInfoResp info) {
+        long bvs = info.getWatched().length + info.getLiked().length + info.getCollected().length + info.getPosted().length;
+        return 200 + 8L * (info.getFollowing().length + info.getFollower().length) + 72 * bvs;
+    }
+}
@@ -0,0 +1,243 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Builds the denormalized UserInfoResp and AuthInfo rows, and the counters of video_stats, after an import.
+ * <p>
+ * The mid range of UserRecord is split into slices holding about the same number of users,
+ * and every slice is aggregated and inserted on its own connection at the same time,
+ * instead of one single-threaded statement over all users.
+ */
+@Slf4j
+class UserInfoMaterializer {
+
+    /**
+     * Per slice version of the sync in {@code DDLs/sync_data.sql}, following and follower come from the edges in user_follow.
+     * Every aggregate only keeps the users of the slice, each pair of parameters is the inclusive mid bounds.
+     */
+    private static final String sql_sync_2_userinforeq = """
+            WITH AggregatedFollowing AS (SELECT uf.follower        AS mid,
+                                                ARRAY_AGG(uf.followee) AS following
+                                         FROM user_follow uf
+                                         WHERE uf.follower BETWEEN ? AND ?
+                                         GROUP BY uf.follower),
+                 AggregatedFollowers AS (SELECT uf.followee        AS mid,
+                                                ARRAY_AGG(uf.follower) AS followers
+                                         FROM user_follow uf
+                                         WHERE uf.followee BETWEEN ? AND ?
+                                         GROUP BY uf.followee),
+                 AggregatedWatched AS (SELECT vr.mid,
+                                              ARRAY_AGG(DISTINCT vr.bv) AS watched_videos
+                                       FROM ViewRecord vr
+                                       WHERE vr.mid BETWEEN ? AND ?
+                                       GROUP BY vr.mid),
+                 AggregatedLiked AS (SELECT lr.mid_liked                    AS mid,
+                                            ARRAY_AGG(DISTINCT lr.BV_liked) AS liked_videos
+                                     FROM likes lr
+                                     WHERE lr.mid_liked BETWEEN ? AND ?
+                                     GROUP BY lr.mid_liked),
+                 AggregatedFavorites AS (SELECT fr.mid_favorite                    AS mid,
+                                                ARRAY_AGG(DISTINCT fr.BV_favorite) AS favorited_videos
+                                         FROM favorites fr
+                                         WHERE fr.mid_favorite BETWEEN ? AND ?
+                                         GROUP BY fr.mid_favorite),
+                 AggregatedPosted AS (SELECT vr.ownerMid               AS mid,
+                                             ARRAY_AGG(DISTINCT vr.bv) AS posted_videos
+                                      FROM VideoRecord vr
+                                      WHERE vr.ownerMid BETWEEN ? AND ?
+                                      GROUP BY vr.ownerMid)
+            INSERT
+            INTO UserInfoResp (mid, coin, following, follower, watched, liked, collected, posted)
+            SELECT ur.mid,
+                   ur.coin,
+                   COALESCE(afg.following, ARRAY []::bigint[]),
+                   COALESCE(af.followers, ARRAY []::bigint[]),
+                   COALESCE(aw.watched_videos, ARRAY []::VARCHAR(255)[]),
+                   COALESCE(al.liked_videos, ARRAY []::VARCHAR(255)[]),
+                   COALESCE(afv.favorited_videos, ARRAY []::VARCHAR(255)[]),
+                   COALESCE(ap.posted_videos, ARRAY []::VARCHAR(255)[])
+            FROM UserRecord ur
+                     LEFT JOIN AggregatedFollowing afg ON ur.mid = afg.mid
+                     LEFT JOIN AggregatedFollowers af ON ur.mid = af.mid
+                     LEFT JOIN AggregatedWatched aw ON ur.mid = aw.mid
+                     LEFT JOIN AggregatedLiked al ON ur.mid = al.mid
+                     LEFT JOIN AggregatedFavorites afv ON ur.mid = afv.mid
+                     LEFT JOIN AggregatedPosted ap ON ur.mid = ap.mid
+            WHERE ur.mid BETWEEN ? AND ?
+              AND NOT EXISTS (SELECT 1 FROM UserInfoResp WHERE mid = ur.mid);
+            """;
+
+    private static final String sql_sync_2_authinfo = """
+            INSERT INTO AuthInfo (mid, password, qq, wechat)
+            SELECT mid,
+                   password,
+                   qq,
+                   wechat
+            FROM UserRecord
+            WHERE mid BETWEEN ? AND ?
+              AND NOT EXISTS (SELECT 1 FROM AuthInfo WHERE mid = UserRecord.mid);
+            """;
+
+    /**
+     * Counters of every video, the import loads with the triggers that keep them disabled.
+     * Each fact table is aggregated once and hash joined, instead of a count per video.
+     */
+    private static final String sql_video_stats = """
+            INSERT INTO video_stats (bv, duration, views, watch_time, likes, coins, favorites, danmus)
+            SELECT v.bv,
+                   v.duration,
+                   COALESCE(w.n, 0),
+                   COALESCE(w.t, 0),
+                   COALESCE(l.n, 0),
+                   COALESCE(c.n, 0),
+                   COALESCE(f.n, 0),
+                   COALESCE(d.n, 0)
+            FROM VideoRecord v
+                     LEFT JOIN (SELECT bv, COUNT(*) AS n, SUM(timestamp) AS t FROM ViewRecord GROUP BY bv) w ON w.bv = v.bv
+                     LEFT JOIN (SELECT BV_liked AS bv, COUNT(*) AS n FROM likes GROUP BY BV_liked) l ON l.bv = v.bv
+                     LEFT JOIN (SELECT BV_coin AS bv, COUNT(*) AS n FROM coins GROUP BY BV_coin) c ON c.bv = v.bv
+                     LEFT JOIN (SELECT BV_favorite AS bv, COUNT(*) AS n FROM favorites GROUP BY BV_favorite) f ON f.bv = v.bv
+                     LEFT JOIN (SELECT bv, COUNT(*) AS n FROM DanmuRecord GROUP BY bv) d ON d.bv = v.bv;
+            """;
+
+    private UserInfoMaterializer() {
+    }
+
+    /**
+     * Materializes UserInfoResp and AuthInfo for every user that does not have them yet.
+     *
+     * @param slices the number of slices, which is also the number of connections used at the same time
+     */
+    static void materialize(DataSource dataSource, int slices) throws SQLException {
+        long start = System.currentTimeMillis();
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            // freshly loaded tables have no statistics yet, without them the slices are planned as nested loops
+            stmt.execute("ANALYZE UserRecord, user_follow, ViewRecord, likes, favorites, coins, DanmuRecord, VideoRecord, UserInfoResp, AuthInfo");
+        }
+        List<long[]> bounds = slice(dataSource, Math.max(1, slices));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, bounds.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < bounds.size(); i++) {
+                int no = i;
+                long[] range = bounds.get(i);
+                futures.add(executor.submit(() -> {
+                    materializeSlice(dataSource, no, range[0], range[1]);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException cause) {
+                throw cause;
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("Materialized UserInfoResp and AuthInfo in {} slices, {} ms", bounds.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Rebuilds video_stats from the fact tables.
+     */
+    static void videoStats(DataSource dataSource) throws SQLException {
+        long start = System.currentTimeMillis();
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            try {
+                stmt.execute("TRUNCATE video_stats");
+                int rows = stmt.executeUpdate(sql_video_stats);
+                conn.commit();
+                log.info("Materialized video_stats of {} videos in {} ms", rows, System.currentTimeMillis() - start);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Splits the mids into ranges of about the same number of users, each as inclusive {@code [low, high]}.
+     */
+    private static List<long[]> slice(DataSource dataSource, int slices) throws SQLException {
+        double[] fractions = new double[slices - 1];
+        for (int i = 1; i < slices; i++) {
+            fractions[i - 1] = (double) i / slices;
+        }
+        String sql = "SELECT MIN(mid), MAX(mid), percentile_disc(?::float8[]) WITHIN GROUP (ORDER BY mid) FROM UserRecord";
+        List<long[]> bounds = new ArrayList<>();
+        try (Connection conn = dataSource.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            Double[] boxed = new Double[fractions.length];
+            for (int i = 0; i < fractions.length; i++) {
+                boxed[i] = fractions[i];
+            }
+            stmt.setArray(1, conn.createArrayOf("float8", boxed));
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                long min = rs.getLong(1);
+                if (rs.wasNull()) {
+                    return bounds;
+                }
+                long max = rs.getLong(2);
+                Array cuts = rs.getArray(3);
+                long low = min;
+                if (cuts != null) {
+                    for (Long cut : (Long[]) cuts.getArray()) {
+                        // duplicate cut points of a small table would produce empty slices
+                        if (cut > low) {
+                            bounds.add(new long[]{low, cut - 1});
+                            low = cut;
+                        }
+                    }
+                }
+                bounds.add(new long[]{low, max});
+            }
+        }
+        return bounds;
+    }
+
+    private static void materializeSlice(DataSource dataSource, int no, long low, long high) throws SQLException {
+        long start = System.currentTimeMillis();
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement();
+             PreparedStatement userInfo = conn.prepareStatement(sql_sync_2_userinforeq);
+             PreparedStatement authInfo = conn.prepareStatement(sql_sync_2_authinfo)) {
+            conn.setAutoCommit(false);
+            try {
+                // the anti join on UserInfoResp, which the other slices are filling, is estimated at a single row,
+                // and a nested loop over the follower aggregate then rescans it for every user of the slice
+                stmt.execute("SET LOCAL enable_nestloop = off");
+                for (int i = 1; i <= userInfo.getParameterMetaData().getParameterCount(); i += 2) {
+                    userInfo.setLong(i, low);
+                    userInfo.setLong(i + 1, high);
+                }
+                int rows = userInfo.executeUpdate();
+                authInfo.setLong(1, low);
+                authInfo.setLong(2, high);
+                authInfo.executeUpdate();
+                conn.commit();
+                log.info("UserInfoResp slice {} [{}, {}]: {} users in {} ms", no, low, high, rows, System.currentTimeMillis() - start);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+}
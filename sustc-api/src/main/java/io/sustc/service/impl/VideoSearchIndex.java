@@ -0,0 +1,680 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trigram inverted index over the lowercase title, description and ownerName of every video, so that
+ * {@link VideoServiceImpl#searchVideo} can answer without a database round trip when {@code sustc.search-in-memory} is on.
+ * <p>
+ * A video gets a dense int id. Every trigram of its fields maps to a posting list, a sorted int array of the ids
+ * containing it. A keyword is looked up by intersecting the postings of the trigrams of its literal runs,
+ * and every candidate is then matched against the LIKE pattern of the SQL search, so the results, the relevance
+ * and the order by view count and bv are the same. Keywords without a literal run of three characters check every video.
+ * <p>
+ * A changed video gets a new id and its old one is dead: postings keep dead ids until more than half of the ids are
+ * dead, then they are rebuilt from the documents in memory.
+ * The index is loaded when the application starts and after every import, {@link VideoServiceImpl} keeps it current on
+ * postVideo, updateVideoInfo and deleteVideo, and {@link AccountDeleter} on deleteAccount.
+ * Reviews do not change what the search returns, so they do not touch it.
+ */
+@Component
+@Slf4j
+public class VideoSearchIndex {
+
+    private static final int[] NO_IDS = new int[0];
+
+    // title, description, ownerName
+    private static final int FIELDS = 3;
+
+    /**
+     * {@code LOWER(field) LIKE LOWER('%kw%')} of one keyword, with the escapes the SQL search puts in.
+     */
+    static final class Keyword {
+
+        // the pattern between its % wildcards, '_' is a wildcard where any[i] is set
+        private final String[] segments;
+        private final boolean[][] any;
+        private final boolean anchoredStart;
+        private final boolean anchoredEnd;
+        private final boolean wildcards;
+
+        // literal runs of the pattern, every match contains each of them
+        private final List<String> literals = new ArrayList<>();
+
+        Keyword(String pattern) {
+            List<String> segments = new ArrayList<>();
+            List<boolean[]> any = new ArrayList<>();
+            StringBuilder segment = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            List<Boolean> wild = new ArrayList<>();
+            boolean anchoredStart = true;
+            boolean anchoredEnd = true;
+            for (int i = 0; i < pattern.length(); ) {
+                int c = pattern.codePointAt(i);
+                i += Character.charCount(c);
+                if (c == '\\' && i < pattern.length()) {
+                    c = pattern.codePointAt(i);
+                    i += Character.charCount(c);
+                    segment.appendCodePoint(c);
+                    literal.appendCodePoint(c);
+                    wild.add(false);
+                    anchoredEnd = true;
+                } else if (c == '%') {
+                    if (segments.isEmpty() && segment.length() == 0 && wild.isEmpty()) {
+                        anchoredStart = false;
+                    } else if (!wild.isEmpty()) {
+                        segments.add(segment.toString());
+                        any.add(toArray(wild));
+                    }
+                    segment.setLength(0);
+                    wild.clear();
+                    endLiteral(literal);
+                    anchoredEnd = false;
+                } else if (c == '_') {
+                    segment.appendCodePoint(c);
+                    wild.add(true);
+                    endLiteral(literal);
+                    anchoredEnd = true;
+                } else {
+                    segment.appendCodePoint(c);
+                    literal.appendCodePoint(c);
+                    wild.add(false);
+                    anchoredEnd = true;
+                }
+            }
+            if (!wild.isEmpty()) {
+                segments.add(segment.toString());
+                any.add(toArray(wild));
+            }
+            endLiteral(literal);
+            this.segments = segments.toArray(new String[0]);
+            this.any = any.toArray(new boolean[0][]);
+            this.anchoredStart = anchoredStart;
+            this.anchoredEnd = anchoredEnd;
+            boolean wildcards = false;
+            for (boolean[] a : this.any) {
+                for (boolean w : a) {
+                    wildcards |= w;
+                }
+            }
+            this.wildcards = wildcards;
+        }
+
+        private void endLiteral(StringBuilder literal) {
+            if (literal.length() > 0) {
+                literals.add(literal.toString());
+                literal.setLength(0);
+            }
+        }
+
+        private static boolean[] toArray(List<Boolean> wild) {
+            boolean[] array = new boolean[wild.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = wild.get(i);
+            }
+            return array;
+        }
+
+        boolean matches(String text) {
+            if (text == null) {
+                return false;
+            }
+            if (segments.length == 0) {
+                // only wildcards, or the empty pattern
+                return !(anchoredStart && anchoredEnd) || text.isEmpty();
+            }
+            if (!wildcards) {
+                // without '_' the segments match char for char, no need for code points
+                return matchesLiterally(text);
+            }
+            int[] cps = text.codePoints().toArray();
+            int pos = 0;
+            for (int s = 0; s < segments.length; s++) {
+                int[] seg = segments[s].codePoints().toArray();
+                boolean first = s == 0;
+                boolean last = s == segments.length - 1;
+                if (last && anchoredEnd) {
+                    int at = cps.length - seg.length;
+                    return at >= pos && !(first && anchoredStart && at != 0) && matchesAt(cps, at, seg, any[s]);
+                }
+                if (first && anchoredStart) {
+                    if (!matchesAt(cps, 0, seg, any[s])) {
+                        return false;
+                    }
+                    pos = seg.length;
+                    continue;
+                }
+                // leftmost, the % in front takes whatever is skipped
+                int at = pos;
+                while (at + seg.length <= cps.length && !matchesAt(cps, at, seg, any[s])) {
+                    at++;
+                }
+                if (at + seg.length > cps.length) {
+                    return false;
+                }
+                pos = at + seg.length;
+            }
+            return true;
+        }
+
+        private boolean matchesLiterally(String text) {
+            int pos = 0;
+            for (int s = 0; s < segments.length; s++) {
+                String seg = segments[s];
+                boolean first = s == 0;
+                boolean last = s == segments.length - 1;
+                if (last && anchoredEnd) {
+                    int at = text.length() - seg.length();
+                    return at >= pos && !(first && anchoredStart && at != 0) && text.startsWith(seg, at);
+                }
+                if (first && anchoredStart) {
+                    if (!text.startsWith(seg)) {
+                        return false;
+                    }
+                    pos = seg.length();
+                    continue;
+                }
+                int at = text.indexOf(seg, pos);
+                if (at < 0) {
+                    return false;
+                }
+                pos = at + seg.length();
+            }
+            return true;
+        }
+
+        private static boolean matchesAt(int[] cps, int at, int[] seg, boolean[] any) {
+            if (at < 0 || at + seg.length > cps.length) {
+                return false;
+            }
+            for (int i = 0; i < seg.length; i++) {
+                if (!any[i] && cps[at + i] != seg[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private SustcConfig config;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile boolean loaded;
+
+    // whether LOWER() of the database only folds ASCII, as under the C ctype
+    private boolean asciiLower = true;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] bvs = new String[0];
+    // lowercase title, description and ownerName of a video, FIELDS per id
+    private String[] fields = new String[0];
+    private int[] views = new int[0];
+    private int size;
+    private int dead;
+
+    private LongIntHashMap grams = new LongIntHashMap(16);
+    private int[][] postings = new int[0][];
+    private int[] lengths = new int[0];
+
+    @EventListener
+    public void onApplicationStarted(ApplicationStartedEvent event) {
+        if (!config.isSearchInMemory()) {
+            return;
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            reload(conn);
+        } catch (SQLException e) {
+            // searchVideo falls back to SQL
+            log.error("Failed to load the video search index", e);
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Replaces the index with the videos and view counts in the database, if the index is enabled.
+     */
+    void reload(Connection conn) throws SQLException {
+        if (!config.isSearchInMemory()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        lock.writeLock().lock();
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT lower('ÄΣ') = 'ÄΣ'")) {
+                rs.next();
+                asciiLower = rs.getBoolean(1);
+            }
+            reset();
+            stmt.setFetchSize(10000);
+            try (ResultSet rs = stmt.executeQuery("SELECT bv, title, description, ownerName FROM VideoRecord")) {
+                while (rs.next()) {
+                    insert(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), 0);
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT bv, views FROM video_stats WHERE views > 0")) {
+                while (rs.next()) {
+                    Integer id = ids.get(rs.getString(1));
+                    if (id != null) {
+                        views[id] = rs.getInt(2);
+                    }
+                }
+            }
+            conn.commit();
+            loaded = true;
+            log.info("Loaded the video search index with {} videos and {} trigrams in {} ms",
+                    ids.size(), grams.size(), System.currentTimeMillis() - start);
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Empties the index, e.g. after a truncate.
+     */
+    void clear() {
+        if (!config.isSearchInMemory()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            reset();
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a posted video, or replaces the text of a changed one, keeping its view count.
+     */
+    void put(String bv, String title, String description, String ownerName) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Integer old = ids.get(bv);
+            int count = 0;
+            if (old != null) {
+                count = views[old];
+                kill(old);
+            }
+            insert(bv, title, description, ownerName, count);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces title and description of a video after updateVideoInfo.
+     */
+    void update(String bv, String title, String description) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Integer old = ids.get(bv);
+            if (old != null) {
+                String ownerName = fields[old * FIELDS + 2];
+                int count = views[old];
+                kill(old);
+                // the stored owner name is lowercase already, lowering it again does not change it
+                insert(bv, title, description, ownerName, count);
+                compactIfNeeded();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String bv) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(bv);
+            if (id != null) {
+                kill(id);
+                compactIfNeeded();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Takes one view per element off the view count of the video, after the view records were deleted.
+     */
+    void removeViews(Collection<String> viewed) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (String bv : viewed) {
+                Integer id = ids.get(bv);
+                if (id != null && views[id] > 0) {
+                    views[id]--;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A video found by {@link #search(String[], Hit, int)}, with the keys it is ranked by.
+     */
+    record Hit(String bv, int score, long views) {
+    }
+
+    // the database collation is C, which orders by code point
+    static final Comparator<Hit> HIT_ORDER = Comparator.comparingInt(Hit::score).reversed()
+            .thenComparing(Comparator.comparingLong(Hit::views).reversed())
+            .thenComparing(Hit::bv);
+
+    // ids with a positive relevance, and the relevance of each
+    private record Matches(int[] ids, int[] scores, int count) {
+    }
+
+    /**
+     * The page of the search for the LIKE patterns, ordered by relevance, view count and bv.
+     */
+    List<String> search(String[] patterns, int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            Matches matches = match(patterns);
+            int[] hits = matches.ids();
+            int[] scores = matches.scores();
+            int count = matches.count();
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                if (scores[a] != scores[b]) {
+                    return Integer.compare(scores[b], scores[a]);
+                }
+                int x = hits[a];
+                int y = hits[b];
+                if (views[x] != views[y]) {
+                    return Integer.compare(views[y], views[x]);
+                }
+                // the database collation is C, which orders by code point
+                return bvs[x].compareTo(bvs[y]);
+            });
+            List<String> page = new ArrayList<>();
+            for (int i = offset; i < count && i < offset + limit; i++) {
+                page.add(bvs[hits[order[i]]]);
+            }
+            return page;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Up to {@code limit} videos of the search that rank after {@code after}, or from the first one if it is null.
+     * Only the videos after the key are sorted, a deep page costs less than the first one.
+     */
+    List<Hit> search(String[] patterns, Hit after, int limit) {
+        lock.readLock().lock();
+        try {
+            Matches matches = match(patterns);
+            List<Hit> rest = new ArrayList<>();
+            for (int i = 0; i < matches.count(); i++) {
+                int id = matches.ids()[i];
+                Hit hit = new Hit(bvs[id], matches.scores()[i], views[id]);
+                if (after == null || HIT_ORDER.compare(hit, after) > 0) {
+                    rest.add(hit);
+                }
+            }
+            rest.sort(HIT_ORDER);
+            return rest.size() > limit ? new ArrayList<>(rest.subList(0, limit)) : rest;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the caller holds the read lock
+    private Matches match(String[] patterns) {
+        Keyword[] keywords = new Keyword[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            keywords[i] = new Keyword(lower(patterns[i]));
+        }
+        int[] candidates = NO_IDS;
+        boolean all = false;
+        for (Keyword keyword : keywords) {
+            int[] ids = candidates(keyword);
+            if (ids == null) {
+                all = true;
+                break;
+            }
+            candidates = union(candidates, ids);
+        }
+        int n = all ? size : candidates.length;
+        int[] hits = new int[n];
+        int[] scores = new int[n];
+        int count = 0;
+        for (int k = 0; k < n; k++) {
+            int id = all ? k : candidates[k];
+            if (bvs[id] == null) {
+                continue;
+            }
+            int score = 0;
+            for (Keyword keyword : keywords) {
+                for (int f = 0; f < FIELDS; f++) {
+                    if (keyword.matches(fields[id * FIELDS + f])) {
+                        score++;
+                    }
+                }
+            }
+            if (score > 0) {
+                hits[count] = id;
+                scores[count++] = score;
+            }
+        }
+        return new Matches(hits, scores, count);
+    }
+
+    // ids that may match, or null if every video has to be checked
+    private int[] candidates(Keyword keyword) {
+        List<Integer> slots = new ArrayList<>();
+        for (String literal : keyword.literals) {
+            for (int i = 0; i + 3 <= literal.length(); i++) {
+                int slot = grams.get(gram(literal, i), -1);
+                if (slot < 0) {
+                    return NO_IDS;
+                }
+                slots.add(slot);
+            }
+        }
+        if (slots.isEmpty()) {
+            return null;
+        }
+        // the shortest posting first, the intersection only shrinks
+        slots.sort(Comparator.comparingInt(slot -> lengths[slot]));
+        int first = slots.get(0);
+        int[] result = Arrays.copyOf(postings[first], lengths[first]);
+        for (int k = 1; k < slots.size() && result.length > 0; k++) {
+            int slot = slots.get(k);
+            result = intersect(result, postings[slot], lengths[slot]);
+        }
+        return result;
+    }
+
+    private void reset() {
+        ids.clear();
+        bvs = new String[1024];
+        fields = new String[1024 * FIELDS];
+        views = new int[1024];
+        size = 0;
+        dead = 0;
+        grams = new LongIntHashMap(1024);
+        postings = new int[1024][];
+        lengths = new int[1024];
+    }
+
+    private void insert(String bv, String title, String description, String ownerName, int count) {
+        if (size == bvs.length) {
+            bvs = Arrays.copyOf(bvs, size * 2);
+            fields = Arrays.copyOf(fields, size * 2 * FIELDS);
+            views = Arrays.copyOf(views, size * 2);
+        }
+        int id = size++;
+        bvs[id] = bv;
+        fields[id * FIELDS] = lower(title);
+        fields[id * FIELDS + 1] = lower(description);
+        fields[id * FIELDS + 2] = lower(ownerName);
+        views[id] = count;
+        ids.put(bv, id);
+        for (int f = 0; f < FIELDS; f++) {
+            String text = fields[id * FIELDS + f];
+            if (text == null) {
+                continue;
+            }
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                addPosting(gram(text, i), id);
+            }
+        }
+    }
+
+    // ids only grow, so appending keeps a posting sorted; a gram seen twice in one video is only added once
+    private void addPosting(long gram, int id) {
+        int slot = grams.get(gram, -1);
+        if (slot < 0) {
+            slot = grams.size();
+            if (slot == postings.length) {
+                postings = Arrays.copyOf(postings, slot * 2);
+                lengths = Arrays.copyOf(lengths, slot * 2);
+            }
+            grams.put(gram, slot);
+            postings[slot] = new int[2];
+        }
+        int length = lengths[slot];
+        if (length > 0 && postings[slot][length - 1] == id) {
+            return;
+        }
+        if (length == postings[slot].length) {
+            postings[slot] = Arrays.copyOf(postings[slot], length * 2);
+        }
+        postings[slot][length] = id;
+        lengths[slot] = length + 1;
+    }
+
+    private void kill(int id) {
+        ids.remove(bvs[id]);
+        bvs[id] = null;
+        dead++;
+    }
+
+    private void compactIfNeeded() {
+        if (dead * 2 <= size) {
+            return;
+        }
+        String[] oldBvs = bvs;
+        String[] oldFields = fields;
+        int[] oldViews = views;
+        int oldSize = size;
+        reset();
+        // the fields are lowercase already, lowering them again does not change them
+        for (int id = 0; id < oldSize; id++) {
+            if (oldBvs[id] != null) {
+                insert(oldBvs[id], oldFields[id * FIELDS], oldFields[id * FIELDS + 1], oldFields[id * FIELDS + 2], oldViews[id]);
+            }
+        }
+    }
+
+    // LOWER() of the database
+    private String lower(String text) {
+        if (text == null) {
+            return null;
+        }
+        if (!asciiLower) {
+            return text.toLowerCase(Locale.ROOT);
+        }
+        char[] chars = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                if (chars == null) {
+                    chars = text.toCharArray();
+                }
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return chars == null ? text : new String(chars);
+    }
+
+    private static long gram(String text, int i) {
+        return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+    }
+
+    private static int[] intersect(int[] a, int[] b, int bLength) {
+        int[] out = new int[Math.min(a.length, bLength)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < bLength; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                out[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                out[n++] = b[j++];
+            } else {
+                out[n++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            out[n++] = a[i++];
+        }
+        while (j < b.length) {
+            out[n++] = b[j++];
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
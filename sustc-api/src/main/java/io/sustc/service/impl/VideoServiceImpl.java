@@ -1,6 +1,7 @@
 package io.sustc.service.impl;
 
 import io.sustc.dto.AuthInfo;
+import io.sustc.dto.CursorPage;
 import io.sustc.dto.PostVideoReq;
 import io.sustc.dto.VideoRecord;
 import io.sustc.service.VideoService;
@@ -19,6 +20,21 @@ public class VideoServiceImpl implements VideoService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private UserImpl userImpl;
+
+    @Autowired
+    private AuthCache authCache;
+
+    @Autowired
+    private UserInfoCache userInfoCache;
+
+    @Autowired
+    private VideoSearchIndex videoSearchIndex;
+
+    @Autowired
+    private SearchResultCache searchResultCache;
+
     @Override
   public String postVideo(AuthInfo auth, PostVideoReq req){
 
@@ -35,11 +51,12 @@ public class VideoServiceImpl implements VideoService {
 
         try (Connection conn = dataSource.getConnection()) {
             // verify auth
-            if (auth == null || !is_valid_auth(auth, conn)) {
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
                 return null;
             }
 
-            AuthInfo REALauth =construct_full_authinfo(auth, conn);
+            AuthInfo REALauth = principal.toAuthInfo();
 
             // verrify requst
             if (req == null || !is_valid_req(req,conn, REALauth)) {
@@ -51,7 +68,8 @@ public class VideoServiceImpl implements VideoService {
                 stmt.setString(1, bv);
                 stmt.setString(2, req.getTitle());
                 stmt.setLong(3, REALauth.getMid());
-                stmt.setString(4, getOwnerName(REALauth.getMid(), conn)); // 获取视频所有者名字
+                String ownerName = getOwnerName(REALauth.getMid(), conn); // 获取视频所有者名字
+                stmt.setString(4, ownerName);
                 stmt.setTimestamp(5, new Timestamp(System.currentTimeMillis())); // 提交时间为当前时间
                 stmt.setFloat(6, req.getDuration());
                 stmt.setString(7, req.getDescription());
@@ -60,6 +78,9 @@ public class VideoServiceImpl implements VideoService {
                 if (affectedRows == 0) {
                     return null; // insertion failed
                 }
+                userInfoCache.invalidate(REALauth.getMid());
+                videoSearchIndex.put(bv, req.getTitle(), req.getDescription(), ownerName);
+                searchResultCache.bump();
                 // get bv
                 try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
                     if (generatedKeys.next()) {
@@ -93,23 +114,26 @@ public class VideoServiceImpl implements VideoService {
                 return false;
             }
             //verify auth
-            if (!is_valid_auth(auth, conn)) {
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
                 return false;
             }
-            AuthInfo REALauth =construct_full_authinfo(auth, conn);
             //verify identity
-            if (!(REALauth.getMid()==(video.getOwnerMid())) && !isSuperuser(REALauth, conn)) {
+            if (!(principal.mid()==(video.getOwnerMid())) && !principal.isSuperuser()) {
                 return false;
             }
 
             //remove likes, collects, favorites, return coins
             // start deleting
+            // the owner, and everyone who watched, liked or collected the video
+            Set<Long> affected = new HashSet<>();
+            affected.add(video.getOwnerMid());
             try {
                 conn.setAutoCommit(false);// 关闭自动提交
 
                 // 删除其他关联表中的记录
                 // 删除视频相关记录ViewRecord,DanmuRecord,likes,favorites,coins
-                if (!deleteRelatedRecords(bv, conn)) {
+                if (!deleteRelatedRecords(bv, conn, affected)) {
                     return false;
                 }
                 // 删除视频本身
@@ -118,6 +142,9 @@ public class VideoServiceImpl implements VideoService {
                 }
 
                 conn.commit();
+                userInfoCache.invalidate(affected);
+                videoSearchIndex.remove(bv);
+                searchResultCache.bump();
 
             } catch (SQLException e) {
                 try {//gpt给出了很顶的建议，他说可能在rollback的时候抛出异常
@@ -151,10 +178,11 @@ public class VideoServiceImpl implements VideoService {
                 return false;
             }
             //valid auth?
-            if (!is_valid_auth(auth, conn)) {
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
                 return false;
             }
-            AuthInfo REALauth =construct_full_authinfo(auth, conn);
+            AuthInfo REALauth = principal.toAuthInfo();
             
             //is onwer?
             if (REALauth.getMid()!=video.getOwnerMid()) {
@@ -190,6 +218,10 @@ public class VideoServiceImpl implements VideoService {
                 stmt.setString(4, bv);
                 // 执行更新
                 int rowsUpdated = stmt.executeUpdate();
+                if (rowsUpdated > 0) {
+                    videoSearchIndex.update(bv, req.getTitle(), req.getDescription());
+                    searchResultCache.bump();
+                }
                 return rowsUpdated > 0;//这里我让执行成功才返回，但是描述是说只要之前被review过就返回true
             }
         } catch (SQLException e) {
@@ -211,50 +243,35 @@ public class VideoServiceImpl implements VideoService {
         if (auth == null || keywords == null || keywords.isEmpty() || pageSize <= 0 || pageNum <= 0) {
             return null;
         }
-        UserImpl userimpl = new UserImpl();
         List<String> videoBVs = new ArrayList<>();
         try (Connection conn = dataSource.getConnection()) {
-            if (!userimpl.isValidAuth(auth, conn)) {
+            if (!userImpl.isValidAuth(auth, conn)) {
 //                throw new IllegalArgumentException("Invalid authentication");
                 return null;
             }
 
-            String[] keywordArray = keywords.split("\\s+");
-
-            // 构建 SQL 查询
-            StringBuilder sqlBuilder = new StringBuilder();
-            sqlBuilder.append("SELECT bv, calculate_relevance(title, description, ownerName, ARRAY[");
-            for (int i = 0; i < keywordArray.length; i++) {
-                sqlBuilder.append("?");
-                if (i < keywordArray.length - 1) {
-                    sqlBuilder.append(", ");
+            // 整个排好的结果在缓存里, 直接切出这一页
+            List<VideoSearchIndex.Hit> ranked = searchResultCache.isEnabled() ? ranked(conn, keywords) : null;
+            if (ranked != null) {
+                long offset = (long) (pageNum - 1) * pageSize;
+                for (long i = offset; i < ranked.size() && i < offset + pageSize; i++) {
+                    videoBVs.add(ranked.get((int) i).bv());
                 }
+                return videoBVs;
             }
-            sqlBuilder.append("]) AS relevance FROM VideoRecord WHERE ");
-            for (int i = 0; i < keywordArray.length; i++) {
-                sqlBuilder.append("(LOWER(title) LIKE LOWER(?) OR LOWER(description) LIKE LOWER(?) OR LOWER(ownerName) LIKE LOWER(?))");
-                if (i < keywordArray.length - 1) {
-                    sqlBuilder.append(" OR ");
-                }
+
+            String[] patterns = patterns(keywords);
+
+            if (videoSearchIndex.isLoaded()) {
+                return videoSearchIndex.search(patterns, (pageNum - 1) * pageSize, pageSize);
             }
-            sqlBuilder.append(" ORDER BY relevance DESC, (SELECT COUNT(*) FROM ViewRecord WHERE VideoRecord.bv = ViewRecord.bv) DESC LIMIT ? OFFSET ?");
 
-            String sql = sqlBuilder.toString();
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                int paramIndex = 1;
-                // Set keywords for the calculate_relevance function
-                for (String keyword : keywordArray) {
-                    String escapedKeyword = escapeKeyword(keyword);
-                    stmt.setString(paramIndex++, "%" + escapedKeyword + "%");
-                }
-                // Set keywords for the WHERE clause
-                for (String keyword : keywordArray) {
-                    String escapedKeyword = escapeKeyword(keyword);
-                    String likePattern = "%" + escapedKeyword + "%";
-                    for (int i = 0; i < 3; i++) {
-                        stmt.setString(paramIndex++, likePattern);
-                    }
-                }
+            StringBuilder sqlBuilder = new StringBuilder("SELECT matched.bv\n").append(sql_search(patterns.length)).append("""
+                    ORDER BY relevance DESC, COALESCE(s.views, 0) DESC, matched.bv
+                    LIMIT ? OFFSET ?""");
+
+            try (PreparedStatement stmt = conn.prepareStatement(sqlBuilder.toString())) {
+                int paramIndex = setPatterns(stmt, conn, patterns);
                 // Set LIMIT and OFFSET
                 stmt.setInt(paramIndex++, pageSize);
                 stmt.setInt(paramIndex++, (pageNum - 1) * pageSize);
@@ -273,6 +290,163 @@ public class VideoServiceImpl implements VideoService {
         return videoBVs;
     }
 
+    @Override
+    public CursorPage<String> searchVideo(AuthInfo auth, String keywords, int pageSize, String cursor) {
+        if (auth == null || keywords == null || keywords.isEmpty() || pageSize <= 0) {
+            return null;
+        }
+        // 游标里是上一页最后一个视频的 (relevance, views, bv)
+        VideoSearchIndex.Hit after = null;
+        if (cursor != null) {
+            String[] key = PageCursor.decode(cursor, PageCursor.SEARCH, 3);
+            if (key == null) {
+                return null;
+            }
+            try {
+                after = new VideoSearchIndex.Hit(key[2], Integer.parseInt(key[0]), Long.parseLong(key[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            if (!userImpl.isValidAuth(auth, conn)) {
+                return null;
+            }
+            // 多取一个, 用来判断后面还有没有
+            List<VideoSearchIndex.Hit> hits;
+            List<VideoSearchIndex.Hit> ranked = searchResultCache.isEnabled() ? ranked(conn, keywords) : null;
+            if (ranked != null) {
+                int from = 0;
+                if (after != null) {
+                    int i = Collections.binarySearch(ranked, after, VideoSearchIndex.HIT_ORDER);
+                    from = i >= 0 ? i + 1 : -i - 1;
+                }
+                hits = ranked.subList(from, (int) Math.min(ranked.size(), (long) from + pageSize + 1));
+            } else {
+                hits = searchHits(conn, patterns(keywords), after, pageSize + 1);
+            }
+            return PageCursor.page(hits, pageSize, VideoSearchIndex.Hit::bv,
+                    last -> PageCursor.encode(PageCursor.SEARCH, last.score(), last.views(), last.bv()));
+        } catch (SQLException e) {
+            log.error("Failed to search videos for {}", keywords, e);
+            return null;
+        }
+    }
+
+    /**
+     * 完整的排序结果, 先查缓存, 没有就整个算出来放进去; 缓存放不下时返回 null, 调用方按页查
+     */
+    private List<VideoSearchIndex.Hit> ranked(Connection conn, String keywords) throws SQLException {
+        String key = SearchResultCache.key(keywords);
+        if (!searchResultCache.fits(key)) {
+            return null;
+        }
+        List<VideoSearchIndex.Hit> ranked = searchResultCache.get(key);
+        if (ranked == null) {
+            long version = searchResultCache.version();
+            // 多取一个, 取满了说明放不下, 不必排完整个结果
+            int capacity = searchResultCache.capacity(key);
+            ranked = searchHits(conn, patterns(keywords), null, capacity + 1);
+            if (ranked.size() > capacity) {
+                searchResultCache.putTooLong(key, version);
+                return null;
+            }
+            searchResultCache.put(key, ranked, version);
+        }
+        return ranked;
+    }
+
+    /**
+     * 排在 after 后面的至多 limit 个结果, after 为 null 时从头开始, limit 为 Integer.MAX_VALUE 时不限
+     */
+    private List<VideoSearchIndex.Hit> searchHits(Connection conn, String[] patterns, VideoSearchIndex.Hit after, int limit)
+            throws SQLException {
+        if (videoSearchIndex.isLoaded()) {
+            return videoSearchIndex.search(patterns, after, limit);
+        }
+        StringBuilder sqlBuilder = new StringBuilder("SELECT matched.bv, matched.relevance, COALESCE(s.views, 0)\n")
+                .append(sql_search(patterns.length));
+        if (after != null) {
+            sqlBuilder.append("""
+                    WHERE matched.relevance < ?
+                       OR matched.relevance = ? AND (COALESCE(s.views, 0) < ? OR COALESCE(s.views, 0) = ? AND matched.bv > ?)
+                    """);
+        }
+        sqlBuilder.append("ORDER BY relevance DESC, COALESCE(s.views, 0) DESC, matched.bv");
+        if (limit < Integer.MAX_VALUE) {
+            sqlBuilder.append("\nLIMIT ?");
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(sqlBuilder.toString())) {
+            int paramIndex = setPatterns(stmt, conn, patterns);
+            if (after != null) {
+                stmt.setInt(paramIndex++, after.score());
+                stmt.setInt(paramIndex++, after.score());
+                stmt.setLong(paramIndex++, after.views());
+                stmt.setLong(paramIndex++, after.views());
+                stmt.setString(paramIndex++, after.bv());
+            }
+            if (limit < Integer.MAX_VALUE) {
+                stmt.setInt(paramIndex, limit);
+            }
+            List<VideoSearchIndex.Hit> hits = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    hits.add(new VideoSearchIndex.Hit(rs.getString(1), rs.getInt(2), rs.getLong(3)));
+                }
+            }
+            return hits;
+        }
+    }
+
+    // 每个关键词一个 LIKE 模式, %、_ 转义
+    private String[] patterns(String keywords) {
+        String[] keywordArray = keywords.split("\\s+");
+        String[] patterns = new String[keywordArray.length];
+        for (int i = 0; i < keywordArray.length; i++) {
+            patterns[i] = "%" + escapeKeyword(keywordArray[i]) + "%";
+        }
+        return patterns;
+    }
+
+    /**
+     * FROM 子句: 匹配的视频和它们的 relevance (matched), 以及观看次数 (s)
+     * 每个关键词对三个字段各一个 LIKE，走 pg_trgm 的 GIN 索引 (BitmapOr)，不再扫全表
+     * relevance 在同一遍里算：每个 (关键词, 字段) 匹配计 1，和 calculate_relevance 一致
+     * relevance 放在 LATERAL 里, 排序和游标条件多次引用时也只算一次
+     */
+    private static String sql_search(int keywords) {
+        StringBuilder sqlBuilder = new StringBuilder("""
+                FROM (SELECT v.bv, r.relevance
+                      FROM VideoRecord v
+                               CROSS JOIN LATERAL (SELECT COUNT(*) AS relevance
+                                                   FROM unnest(?::text[]) AS k(pattern),
+                                                        (VALUES (LOWER(v.title)), (LOWER(v.description)), (LOWER(v.ownerName))) AS f(field)
+                                                   WHERE f.field LIKE LOWER(k.pattern)) AS r
+                      WHERE\s""");
+        for (int i = 0; i < keywords; i++) {
+            if (i > 0) {
+                sqlBuilder.append(" OR ");
+            }
+            sqlBuilder.append("LOWER(title) LIKE LOWER(?) OR LOWER(description) LIKE LOWER(?) OR LOWER(ownerName) LIKE LOWER(?)");
+        }
+        return sqlBuilder.append("""
+                ) AS matched
+                         LEFT JOIN video_stats s ON s.bv = matched.bv
+                """).toString();
+    }
+
+    // 模式数组和每个模式的三个 LIKE 参数, 返回下一个参数的位置
+    private static int setPatterns(PreparedStatement stmt, Connection conn, String[] patterns) throws SQLException {
+        int paramIndex = 1;
+        stmt.setArray(paramIndex++, conn.createArrayOf("text", patterns));
+        for (String pattern : patterns) {
+            for (int i = 0; i < 3; i++) {
+                stmt.setString(paramIndex++, pattern);
+            }
+        }
+        return paramIndex;
+    }
+
     @Override
     public double getAverageViewRate(String bv) {
         // 检查 bv 是否有效
@@ -281,38 +455,30 @@ public class VideoServiceImpl implements VideoService {
         }
 
         try (Connection conn = dataSource.getConnection()) {
-            // 检查视频是否存在
-            String videoCheckSql = "SELECT duration FROM VideoRecord WHERE bv = ?";
-            try (PreparedStatement videoCheckStmt = conn.prepareStatement(videoCheckSql)) {
-                videoCheckStmt.setString(1, bv);
-                try (ResultSet videoCheckRs = videoCheckStmt.executeQuery()) {
-                    if (!videoCheckRs.next()) {
+            // 时长和观看次数、总观看时间都在一行, 不再聚合 ViewRecord
+            String sql_view_rate = """
+                    SELECT v.duration, s.views, s.watch_time
+                    FROM VideoRecord v
+                             LEFT JOIN video_stats s ON s.bv = v.bv
+                    WHERE v.bv = ?""";
+            try (PreparedStatement stmt = conn.prepareStatement(sql_view_rate)) {
+                stmt.setString(1, bv);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
                         // 视频不存在
                         return -1;
                     }
-                    // 获取视频时长
-                    int videoDuration = videoCheckRs.getInt("duration");
+                    int videoDuration = rs.getInt("duration");
                     if (videoDuration <= 0) {
                         // 视频时长无效
                         return -1;
                     }
-
-                    // 计算平均观看率
-                    String viewRateSql = "SELECT AVG(timestamp) AS average_view_time FROM ViewRecord WHERE bv = ?";
-                    try (PreparedStatement viewRateStmt = conn.prepareStatement(viewRateSql)) {
-                        viewRateStmt.setString(1, bv);
-                        try (ResultSet viewRateRs = viewRateStmt.executeQuery()) {
-                            if (viewRateRs.next()) {
-                                double averageViewTime = viewRateRs.getDouble("average_view_time");
-                                if (viewRateRs.wasNull()) {
-                                    // 没有人观看这个视频
-                                    return -1;
-                                }
-                                // 计算并返回平均观看率
-                                return averageViewTime / videoDuration;
-                            }
-                        }
+                    long views = rs.getLong("views");
+                    if (views == 0) {
+                        // 没有人观看这个视频
+                        return -1;
                     }
+                    return rs.getDouble("watch_time") / views / videoDuration;
                 }
             }
         } catch (SQLException e) {
@@ -371,7 +537,6 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public boolean reviewVideo(AuthInfo auth, String bv) {
-        UserImpl userimpl = new UserImpl();
         // 验证输入参数
         if (auth == null || bv == null || bv.isEmpty()) {
             return false;
@@ -379,7 +544,8 @@ public class VideoServiceImpl implements VideoService {
 
         try (Connection conn = dataSource.getConnection()) {
             // 验证用户身份
-            if (!userimpl.isValidAuth(auth, conn) || !isSuperuser(auth, conn)) {
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid() || !principal.isSuperuser()) {
                 return false;
             }
 
@@ -392,7 +558,7 @@ public class VideoServiceImpl implements VideoService {
                         // 视频不存在
                         return false;
                     }
-                    if (auth.getMid() == (videoCheckRs.getLong("ownerMid"))) {
+                    if (principal.mid() == (videoCheckRs.getLong("ownerMid"))) {
                         // 用户是视频所有者
                         return false;
                     }
@@ -418,23 +584,23 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public boolean coinVideo(AuthInfo auth, String bv) {
-        UserImpl userimpl = new UserImpl();
         if (auth == null || bv == null) {
             return false;
         }
         try (Connection conn = dataSource.getConnection()) {
             // 检查用户权限和是否有硬币
-            if (!userimpl.isValidAuth(auth, conn)) {
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
 //throw new IllegalArgumentException("invalid auth "+auth.getMid()+" "+bv);
                 return false;
             }
-            AuthInfo REALauth = userimpl.construct_full_authinfo(auth, conn);
+            AuthInfo REALauth = principal.toAuthInfo();
 
-            if(!doesuserhasCoins(REALauth, conn)){
+            if(principal.coin() <= 0){
 //                throw new IllegalArgumentException("no coins "+auth.getMid()+" "+bv);
                 return false;
             }
-            if(!canUserSearchVideo(REALauth, bv, conn)){
+            if(!canUserSearchVideo(principal, bv, conn)){
 //                throw new IllegalArgumentException("cannot search video "+auth.getMid()+" "+bv);
                 return false;
             }
@@ -445,7 +611,7 @@ public class VideoServiceImpl implements VideoService {
                 return false;
             }
             //owner不可以coin
-            if (auth.getMid() == video.getOwnerMid()) {
+            if (principal.mid() == video.getOwnerMid()) {
                 return false;
             }
             // 检查用户是否已赠送硬币
@@ -472,13 +638,18 @@ public class VideoServiceImpl implements VideoService {
                     stmt.setLong(2, REALauth.getMid());
                     stmt.executeUpdate();
                 }
-                //user的coin-1
-                String sql2 = "UPDATE UserRecord SET coin = coin - 1 WHERE mid = ?";
+                //user的coin-1, the balance of the principal may be stale, the update only spends a coin that is left
+                String sql2 = "UPDATE UserRecord SET coin = coin - 1 WHERE mid = ? AND coin > 0";
                 try (PreparedStatement stmt = conn.prepareStatement(sql2)) {
                     stmt.setLong(1, REALauth.getMid());
-                    stmt.executeUpdate();
+                    if (stmt.executeUpdate() == 0) {
+                        conn.rollback();
+                        authCache.invalidate(REALauth.getMid());
+                        return false;
+                    }
                 }
                 conn.commit();
+                authCache.invalidate(REALauth.getMid());
                 return true;
             } catch (SQLException e) {
                 // 发生异常时回滚事务
@@ -497,14 +668,18 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public boolean likeVideo(AuthInfo auth, String bv) {
-        UserImpl userimpl = new UserImpl();
         if (auth == null || bv == null) {
             return false;
         }
         try (Connection conn = dataSource.getConnection()) {
-            AuthInfo REALauth = userimpl.construct_full_authinfo(auth, conn);
+            //verify auth
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
+                return false;
+            }
+            AuthInfo REALauth = principal.toAuthInfo();
 
-            if (!canUserSearchVideo(auth, bv, conn)) {
+            if (!canUserSearchVideo(principal, bv, conn)) {
                 return false;
             }
             // get video
@@ -513,12 +688,8 @@ public class VideoServiceImpl implements VideoService {
             if (video == null) {
                 return false;
             }
-            //verify auth
-            if (!userimpl.isValidAuth(auth, conn)) {
-                return false;
-            }
             //不能给自己点赞
-            if (auth.getMid() == video.getOwnerMid()) {
+            if (principal.mid() == video.getOwnerMid()) {
                 return false;
             }
             // 检查用户是否已点赞
@@ -539,6 +710,7 @@ public class VideoServiceImpl implements VideoService {
                             deleteStmt.setString(1, bv);
                             deleteStmt.setLong(2, REALauth.getMid());
                             deleteStmt.executeUpdate();
+                            userInfoCache.invalidate(REALauth.getMid());
                             return false;
                         }
                     } else {
@@ -548,6 +720,7 @@ public class VideoServiceImpl implements VideoService {
                             insertStmt.setString(1, bv);
                             insertStmt.setLong(2, REALauth.getMid());
                             insertStmt.executeUpdate();
+                            userInfoCache.invalidate(REALauth.getMid());
                             return true;
                         }
                     }
@@ -561,13 +734,18 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public boolean collectVideo(AuthInfo auth, String bv) {
-        UserImpl userimpl = new UserImpl();
         if (auth == null || bv == null) {
             return false;
         }
         try (Connection conn = dataSource.getConnection()) {
-            AuthInfo REALauth = userimpl.construct_full_authinfo(auth, conn);
-            if (!canUserSearchVideo(auth, bv, conn)) {
+            //verify auth
+            Principal principal = userImpl.resolve(auth, conn);
+            if (!principal.valid()) {
+                return false;
+            }
+            AuthInfo REALauth = principal.toAuthInfo();
+            auth = REALauth;
+            if (!canUserSearchVideo(principal, bv, conn)) {
                 return false;
             }
             // get video
@@ -576,12 +754,6 @@ public class VideoServiceImpl implements VideoService {
             if (video == null) {
                 return false;
             }
-            //verify auth
-            if (!userimpl.isValidAuth(auth, conn)) {
-                return false;
-            } else {
-                auth = userimpl.construct_full_authinfo(auth, conn);
-            }
             //verify identity
             if (auth.getMid() == video.getOwnerMid()) {
                 return false;
@@ -606,6 +778,7 @@ public class VideoServiceImpl implements VideoService {
                         deleteStmt.setString(1, bv);
                         deleteStmt.setLong(2, auth.getMid());
                         deleteStmt.executeUpdate();
+                        userInfoCache.invalidate(auth.getMid());
                         return false;
                     }
                 } else {
@@ -615,6 +788,7 @@ public class VideoServiceImpl implements VideoService {
                         insertStmt.setString(1, bv);
                         insertStmt.setLong(2, REALauth.getMid());
                         insertStmt.executeUpdate();
+                        userInfoCache.invalidate(REALauth.getMid());
                         return true;
                     }
                 }
@@ -659,53 +833,6 @@ public class VideoServiceImpl implements VideoService {
         return true;
     }
 
-    private boolean isSuperuser(AuthInfo auth, Connection conn) {
-        String AuthIdentity = "";
-        if(auth.getWechat()!=null&&!auth.getWechat().equals("null")) {
-            String sql = "SELECT identity FROM UserRecord WHERE wechat = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, auth.getWechat());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        // when using ENUM type in postgres, it will return a String type in Java.
-                        AuthIdentity = rs.getString(1);
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        } else if (auth.getQq()!=null&&!auth.getQq().equals("null")) {
-            String sql = "SELECT identity FROM UserRecord WHERE qq = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, auth.getQq());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        AuthIdentity = rs.getString(1);
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        }else {
-            String sql = "SELECT identity FROM UserRecord WHERE mid = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, auth.getMid());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        AuthIdentity = rs.getString(1);
-
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        if (AuthIdentity.equals("SUPERUSER")) {
-            return true;
-        }
-        return false;
-    }
-
     private String getOwnerName(long mid, Connection conn) {
         // get owner name by mid
         String sql_get_owner_name = "SELECT name FROM UserRecord WHERE mid = ?";
@@ -739,10 +866,10 @@ public class VideoServiceImpl implements VideoService {
         return false; // return false when failed to execute sql
     }
 
-    public boolean canUserSearchVideo(AuthInfo auth, String bv, Connection conn) throws SQLException {
+    public boolean canUserSearchVideo(Principal principal, String bv, Connection conn) throws SQLException {
         VideoRecord video = getVideoByBV(bv, conn);
         // 检查用户权限（例如，是否为管理员或视频的上传者）
-        if (video == null || isSuperuser(auth, conn) || auth.getMid() == video.getOwnerMid()) {
+        if (video == null || principal.isSuperuser() || principal.mid() == video.getOwnerMid()) {
             return true;
         }
         // 查询视频信息，检查是否publish? reviewed?
@@ -765,59 +892,6 @@ public class VideoServiceImpl implements VideoService {
         return false;
     }
 
-    private boolean doesuserhasCoins(AuthInfo auth, Connection conn) throws SQLException {
-        if(auth.getWechat()!=null&&!auth.getWechat().equals("null")) {
-            String sql = "SELECT coin FROM UserRecord WHERE wechat = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, auth.getWechat());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        int num = rs.getInt("coin");
-                        if(num > 0) {
-                            return true;
-                        }
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        } else if (auth.getQq()!=null&&!auth.getQq().equals("null")) {
-            String sql = "SELECT coin FROM UserRecord WHERE qq = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, auth.getQq());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        int num = rs.getInt("coin");
-                        if(num > 0) {
-                            return true;
-                        }
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        }else {
-            if (auth.getMid() != 0) {
-                String sql = "SELECT coin FROM UserRecord WHERE mid = ?";
-                try (PreparedStatement coinCheckStmt = conn.prepareStatement(sql)) {
-                    coinCheckStmt.setLong(1, auth.getMid());
-                    try (ResultSet rs = coinCheckStmt.executeQuery()) {
-                        if (rs.next()) {
-                            int num = rs.getInt("coin");
-                            if (num > 0) {
-                                return true;
-                            }
-                        }
-                    }
-
-                }catch (SQLException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-        return false;
-    }
-
     public VideoRecord getVideoByBV(String bv, Connection conn) {
         String sql = "SELECT * FROM VideoRecord WHERE bv = ?";
         try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
@@ -843,11 +917,11 @@ public class VideoServiceImpl implements VideoService {
     }
 
     //删除视频相关记录
-    private boolean deleteRelatedRecords(String bv, Connection conn) throws SQLException {
+    private boolean deleteRelatedRecords(String bv, Connection conn, Set<Long> affected) throws SQLException {
         // 删除 ViewRecord 表中相关记录
-        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM ViewRecord WHERE bv = ?")) {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM ViewRecord WHERE bv = ? RETURNING mid")) {
             stmt.setString(1, bv);
-            stmt.executeUpdate();
+            collectMids(stmt, affected);
         }
 
         // 删除 DanmuRecord 表中相关记录
@@ -857,15 +931,15 @@ public class VideoServiceImpl implements VideoService {
         }
 
         // 删除 likes 表中相关记录
-        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM likes WHERE BV_liked = ?")) {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM likes WHERE BV_liked = ? RETURNING mid_liked")) {
             stmt.setString(1, bv);
-            stmt.executeUpdate();
+            collectMids(stmt, affected);
         }
 
         // 删除 favorites 表中相关记录
-        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM favorites WHERE BV_favorite = ?")) {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM favorites WHERE BV_favorite = ? RETURNING mid_favorite")) {
             stmt.setString(1, bv);
-            stmt.executeUpdate();
+            collectMids(stmt, affected);
         }
 
         // 删除 coins 表中相关记录
@@ -885,6 +959,15 @@ public class VideoServiceImpl implements VideoService {
         return true; //here if no line is deleted, it will excute sucessfully   (should modify if needed)
     }
 
+    // 收集 DELETE ... RETURNING 返回的 mid
+    private static void collectMids(PreparedStatement stmt, Set<Long> mids) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                mids.add(rs.getLong(1));
+            }
+        }
+    }
+
     // 删除 VideoRecord 视频记录
     private boolean deleteVideoRecord(String bv, Connection conn) throws SQLException {
         String sql = "DELETE FROM VideoRecord WHERE bv = ?";
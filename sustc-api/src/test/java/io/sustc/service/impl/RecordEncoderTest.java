@@ -0,0 +1,52 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.VideoRecord;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RecordEncoderTest {
+
+    private static String birthday(String birthday) {
+        CopyWriter out = new CopyWriter();
+        RecordEncoder.birthday(birthday, out);
+        return new String(out.buffer(), 0, out.size(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void writesValidBirthdays() {
+        assertEquals("2000-3-5", birthday("3月5日"));
+        assertEquals("2000-12-31", birthday("12-31"));
+        assertEquals("2000-2-29", birthday("2-29"));
+    }
+
+    @Test
+    void rollsOverDaysPastTheEndOfTheMonth() {
+        assertEquals("2000-3-1", birthday("2-30"));
+        assertEquals("2000-5-1", birthday("4-31"));
+        assertEquals("2000-3-2", birthday("2月31日"));
+    }
+
+    @Test
+    void writesNullForNoMonthAndDay() {
+        assertEquals("\\N", birthday("13-1"));
+        assertEquals("\\N", birthday("0-10"));
+        assertEquals("\\N", birthday("1-0"));
+        assertEquals("\\N", birthday("1-32"));
+        assertEquals("\\N", birthday("1月1"));
+        assertEquals("\\N", birthday(""));
+        assertEquals("\\N", birthday(null));
+    }
+
+    @Test
+    void writesEachLikeOnce() {
+        VideoRecord video = new VideoRecord();
+        video.setBv("BV1");
+        video.setLike(new long[]{3, 1, 3, 3});
+        CopyWriter out = new CopyWriter();
+        RecordEncoder.likes(video, out);
+        assertEquals("BV1\t1\nBV1\t3\n", new String(out.buffer(), 0, out.size(), StandardCharsets.UTF_8));
+    }
+}